@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import tk.josemmo.BlockLog;
+import tk.josemmo.DataManager;
+
+/**
+ * Benchmarks
+ * 
+ * Mide el rendimiento de los puntos críticos del nodo y guarda los resultados
+ * en un CSV para poder comparar entre versiones. Se ejecuta con `ant bench`.
+ * 
+ * Propiedades del sistema:
+ *   bench.sizes      Tamaños de las cadenas sintéticas en número de
+ *                    transacciones (por defecto "10000,100000,1000000")
+ *   bench.output     Fichero CSV de resultados (por defecto
+ *                    "bench-results.csv"); se añaden filas si ya existe
+ *   bench.time       Milisegundos por iteración de medida (por defecto 1000)
+ *   bench.iterations Iteraciones de medida (por defecto 5)
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class Benchmarks {
+    
+    private static final int TRANSACTIONS_PER_BLOCK = 1000;
+    private static final int ADDRESSES = 100;
+    private static final int LOG_ADDRESSES = 10000;
+    private static final int LOG_SEGMENTS = 2;
+    
+    private static final long ITERATION_TIME = Long.getLong("bench.time", 1000);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final String OUTPUT = System.getProperty("bench.output",
+        "bench-results.csv");
+    
+    private static PrintWriter out;
+    private static volatile Object sink;
+    
+    
+    /**
+     * @param args the command line arguments
+     * @throws Exception 
+     */
+    public static void main(String[] args) throws Exception {
+        boolean newFile = !new File(OUTPUT).exists();
+        out = new PrintWriter(new FileWriter(OUTPUT, true));
+        if (newFile) {
+            out.println("timestamp,benchmark,params,iterations,ns_per_op," +
+                "ns_per_op_error,ops_per_s");
+        }
+        
+        // Claves para las transacciones sintéticas
+        KeyPair[] keys = new KeyPair[ADDRESSES];
+        for (int i=0; i<ADDRESSES; i++) keys[i] = Utils.generateKeyPair();
+        
+        hashing(keys);
+        signatures(keys);
+        for (String size : System.getProperty("bench.sizes",
+                "10000,100000,1000000").split(",")) {
+            chain(keys, Integer.parseInt(size.trim()));
+        }
+        blockLog();
+        
+        out.close();
+    }
+    
+    
+    /**
+     * Hashing
+     * @param keys 
+     */
+    private static void hashing(KeyPair[] keys) throws Exception {
+        String input = Utils.sha256("cutrecoin");
+        run("Utils.sha256", "", () -> Utils.sha256(input));
+        
+        // Recalcular hash de un bloque completo
+        Block block = new Block(1, buildTransactions(keys, TRANSACTIONS_PER_BLOCK, 0),
+            null, keys[0].getPublic(), Cutrecoin.MAX_FEE);
+        run("Block.recalculateHash", "transactions=" + TRANSACTIONS_PER_BLOCK, () -> {
+            block.recalculateHash();
+            return block.getHash();
+        });
+        
+        // Minar bloques vacíos con distintas dificultades
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int difficulty : new int[] {8, 12, 16, 20}) {
+            long[] index = {0};
+            run("Block.mine", "difficulty=" + difficulty + ",threads=" + threads, () -> {
+                Block b = new Block(index[0]++, new ArrayList<>(), null,
+                    keys[0].getPublic(), Cutrecoin.MAX_FEE);
+                new Miner(threads, difficulty).mine(b);
+                return b.getHash();
+            });
+        }
+    }
+    
+    
+    /**
+     * Signatures
+     * @param keys 
+     */
+    private static void signatures(KeyPair[] keys) throws Exception {
+        PublicKey to = keys[1].getPublic();
+        long[] time = {0};
+        run("Transaction.sign", "", () -> {
+            Transaction t = new Transaction(keys[0].getPublic(), to, 1,
+                new Date(time[0]++));
+            return t.sign(keys[0].getPrivate());
+        });
+        
+        Transaction signed = new Transaction(keys[0].getPublic(), to, 1, new Date());
+        signed.sign(keys[0].getPrivate());
+        run("Transaction.isValidSignature", "", signed::isValidSignature);
+    }
+    
+    
+    /**
+     * Chain
+     * 
+     * Consultas y persistencia sobre una cadena sintética con el número de
+     * transacciones indicado.
+     * 
+     * @param keys
+     * @param size 
+     */
+    private static void chain(KeyPair[] keys, int size) throws Exception {
+        // Construir cadena sintética (sin firmar ni minar)
+        ArrayList<Block> chain = new ArrayList<>();
+        Hash256 prevHash = null;
+        for (int i=0; i*TRANSACTIONS_PER_BLOCK<size; i++) {
+            int count = Math.min(TRANSACTIONS_PER_BLOCK, size - i*TRANSACTIONS_PER_BLOCK);
+            Block block = new Block(i, buildTransactions(keys, count,
+                (long) i*TRANSACTIONS_PER_BLOCK), prevHash,
+                keys[i % ADDRESSES].getPublic(), Cutrecoin.MAX_FEE);
+            chain.add(block);
+            prevHash = block.getHash();
+        }
+        Cutrecoin cc = new Cutrecoin(chain);
+        String params = "transactions=" + size;
+        
+        // Consultas
+        Random random = new Random(1);
+        run("Cutrecoin.getBalance", params, () ->
+            cc.getBalance(keys[random.nextInt(ADDRESSES)].getPublic()));
+        run("Cutrecoin.getMarketCap", params, cc::getMarketCap);
+        run("Cutrecoin.getBlock", params, () ->
+            cc.getBlock(chain.get(random.nextInt(chain.size())).getHash()));
+        run("Cutrecoin.getBlockFromTransaction", params, () -> {
+            Block b = chain.get(random.nextInt(chain.size()));
+            ArrayList<Transaction> ts = b.getTransactions();
+            return cc.getBlockFromTransaction(ts.get(random.nextInt(ts.size())));
+        });
+        run("Cutrecoin.getCustomTransactions", params, () ->
+            cc.getCustomTransactions(keys[random.nextInt(ADDRESSES)].getPublic()));
+        
+        // Persistencia
+        File tmp = File.createTempFile("cutrecoin-bench", ".dat");
+        tmp.deleteOnExit();
+        String path = tmp.getPath();
+        run("DataManager.saveSerialized", params, () ->
+            DataManager.saveSerialized(path, chain));
+        run("DataManager.readSerialized", params, () ->
+            DataManager.readSerialized(path));
+        out.println(now() + ",DataManager.fileSize,\"" + params + "\",1," +
+            tmp.length() + ",0,0");
+        out.flush();
+        tmp.delete();
+        
+        // Codificación binaria frente a serialización de Java
+        Block sample = chain.get(chain.size() / 2);
+        byte[] encoded = sample.encode();
+        byte[] serialized = serialize(sample);
+        run("Block.encode", params, sample::encode);
+        run("Block.decode", params, () -> Block.decode(ByteBuffer.wrap(encoded)));
+        run("ObjectOutputStream.writeObject", params, () -> serialize(sample));
+        run("ObjectInputStream.readObject", params, () -> deserialize(serialized));
+        out.println(now() + ",Block.encodedSize,\"" + params + "\",1," +
+            encoded.length + ",0,0");
+        out.println(now() + ",Block.serializedSize,\"" + params + "\",1," +
+            serialized.length + ",0,0");
+        out.flush();
+    }
+    
+    
+    /**
+     * Block log
+     * 
+     * Tamaño en disco del registro de bloques con segmentos del tamaño real
+     * (`BlockLog.SEGMENT_SIZE`) y transacciones firmadas por muchas claves
+     * distintas, como en una cadena de verdad. Se añaden bloques hasta cerrar
+     * y comprimir `LOG_SEGMENTS` segmentos.
+     * 
+     * @throws Exception 
+     */
+    private static void blockLog() throws Exception {
+        KeyPair[] keys = new KeyPair[LOG_ADDRESSES];
+        for (int i=0; i<LOG_ADDRESSES; i++) keys[i] = Utils.generateKeyPair();
+        
+        File logDir = Files.createTempDirectory("cutrecoin-bench").toFile();
+        BlockLog log = new BlockLog(logDir.getPath(), BlockLog.SEGMENT_SIZE,
+            new KeyDictionary());
+        Random random = new Random(1);
+        Hash256 prevHash = null;
+        long rawSize = 0;
+        int transactions = 0;
+        for (int i=0; rawSize<LOG_SEGMENTS*BlockLog.SEGMENT_SIZE; i++) {
+            ArrayList<Transaction> ts = new ArrayList<>(TRANSACTIONS_PER_BLOCK);
+            for (int j=0; j<TRANSACTIONS_PER_BLOCK; j++) {
+                KeyPair from = keys[random.nextInt(LOG_ADDRESSES)];
+                PublicKey to = keys[random.nextInt(LOG_ADDRESSES)].getPublic();
+                Transaction t = new Transaction(from.getPublic(), to,
+                    1 + random.nextInt(100), new Date(transactions++));
+                t.sign(from.getPrivate());
+                ts.add(t);
+            }
+            Block block = new Block(i, ts, prevHash,
+                keys[random.nextInt(LOG_ADDRESSES)].getPublic(), Cutrecoin.MAX_FEE);
+            byte[] data = block.encode();
+            log.append(data);
+            rawSize += data.length;
+            prevHash = block.getHash();
+        }
+        log.sync();
+        log.close();
+        
+        // Los segmentos comprimidos guardan su tamaño original al principio
+        long diskSize = 0;
+        long sealedRawSize = 0;
+        long sealedDiskSize = 0;
+        for (File f : logDir.listFiles()) {
+            diskSize += f.length();
+            if (f.getName().endsWith(".dz")) {
+                try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+                    sealedRawSize += in.readInt();
+                }
+                sealedDiskSize += f.length();
+            }
+            f.delete();
+        }
+        logDir.delete();
+        
+        String params = "transactions=" + transactions + ",addresses=" + LOG_ADDRESSES;
+        out.println(now() + ",BlockLog.rawSize,\"" + params + "\",1," +
+            rawSize + ",0,0");
+        out.println(now() + ",BlockLog.diskSize,\"" + params + "\",1," +
+            diskSize + ",0,0");
+        out.println(now() + ",BlockLog.sealedRawSize,\"" + params + "\",1," +
+            sealedRawSize + ",0,0");
+        out.println(now() + ",BlockLog.sealedDiskSize,\"" + params + "\",1," +
+            sealedDiskSize + ",0,0");
+        out.flush();
+    }
+    
+    
+    /**
+     * Serialize
+     * @param object
+     * @return bytes
+     * @throws IOException 
+     */
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(bytesOut)) {
+            objectOut.writeObject(object);
+        }
+        return bytesOut.toByteArray();
+    }
+    
+    
+    /**
+     * Deserialize
+     * @param bytes
+     * @return object
+     * @throws Exception 
+     */
+    private static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream objectIn =
+                new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return objectIn.readObject();
+        }
+    }
+    
+    
+    /**
+     * Build transactions
+     * @param keys
+     * @param count
+     * @param seed
+     * @return transactions
+     */
+    private static ArrayList<Transaction> buildTransactions(KeyPair[] keys,
+                                                           int count, long seed) {
+        ArrayList<Transaction> transactions = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            long n = seed + i;
+            PublicKey from = keys[(int) (n % ADDRESSES)].getPublic();
+            PublicKey to = keys[(int) ((n * 7 + 3) % ADDRESSES)].getPublic();
+            transactions.add(new Transaction(from, to, 1, new Date(n)));
+        }
+        return transactions;
+    }
+    
+    
+    /**
+     * Run
+     * 
+     * Calienta la JVM durante una iteración y después mide `ITERATIONS`
+     * iteraciones de `ITERATION_TIME` milisegundos cada una.
+     * 
+     * @param name
+     * @param params
+     * @param op 
+     */
+    private static void run(String name, String params, Callable<?> op)
+            throws Exception {
+        iteration(op);
+        double[] results = new double[ITERATIONS];
+        double mean = 0;
+        for (int i=0; i<ITERATIONS; i++) {
+            results[i] = iteration(op);
+            mean += results[i] / ITERATIONS;
+        }
+        double variance = 0;
+        for (double r : results) variance += (r - mean) * (r - mean) / ITERATIONS;
+        
+        // Guardar resultado
+        String line = now() + "," + name + ",\"" + params + "\"," + ITERATIONS +
+            "," + String.format(Locale.ROOT, "%.1f", mean) + "," +
+            String.format(Locale.ROOT, "%.1f", Math.sqrt(variance)) + "," +
+            String.format(Locale.ROOT, "%.2f", 1e9 / mean);
+        System.out.println(line);
+        out.println(line);
+        out.flush();
+    }
+    
+    
+    /**
+     * Iteration
+     * @param op
+     * @return nanosegundos por operación
+     */
+    private static double iteration(Callable<?> op) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_TIME * 1000000;
+        long end;
+        do {
+            sink = op.call();
+            ops++;
+            end = System.nanoTime();
+        } while (end < deadline);
+        return (double) (end - start) / ops;
+    }
+    
+    
+    /**
+     * Now
+     * @return timestamp
+     */
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+    
+}
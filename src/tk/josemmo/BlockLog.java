@@ -0,0 +1,803 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Block Log
+ * 
+ * Registro de solo-añadir donde cada bloque se guarda como un registro
+ * independiente, de forma que guardar un bloque nuevo cuesta lo mismo sin
+ * importar el tamaño de la cadena. Los registros se reparten en ficheros
+ * (segmentos) de tamaño limitado dentro de un directorio:
+ * 
+ *   blk00000.dz, blk00000.idx, blk00001.dz, blk00001.idx, ..., blk00042.dat
+ * 
+ * Cada registro tiene el formato:
+ *   longitud        4 bytes
+ *   CRC32           4 bytes (del contenido)
+ *   contenido       `longitud` bytes
+ * 
+ * Solo el último segmento (el activo) se guarda tal cual (.dat). Al empezar
+ * uno nuevo, el anterior se comprime con Deflate. Antes se le puede aplicar
+ * una transformación reversible (`SegmentCodec`), p. ej. para sustituir las
+ * claves públicas repetidas por referencias, ya que Deflate solo ve las
+ * repeticiones dentro de una ventana de 32 KB. El fichero comprimido (.dz)
+ * tiene el formato:
+ *   longitud original     4 bytes
+ *   formato               1 byte (0: tal cual, 1: transformado con el codec)
+ *   longitud transformada 4 bytes
+ *   datos comprimidos
+ * Junto a cada segmento
+ * comprimido se guarda su tabla de registros (.idx: número de registros,
+ * longitud de cada uno y CRC32 de la tabla).
+ * 
+ * Al abrir el registro solo se recorre el segmento activo; de los comprimidos
+ * basta con leer su tabla, ya que se comprobaron al cerrarlos. Si el último
+ * registro quedó a medias (p. ej. por un corte de luz) se trunca el fichero en
+ * ese punto.
+ * 
+ * Los registros de segmentos sin comprimir se leen directamente del fichero
+ * y los comprimidos se descomprimen enteros y se guardan en una pequeña caché.
+ * No se proyecta nada en memoria: en Windows un fichero proyectado no se puede
+ * truncar ni borrar hasta que el recolector libera la proyección.
+ * 
+ * Un segmento comprimido solo se crea a partir de uno cerrado y sincronizado,
+ * así que si está dañado no se trata como una cola rota: el registro no se
+ * abre y hay que restaurarlo a mano.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class BlockLog {
+    
+    // Tamaño a partir del cual se empieza un segmento nuevo
+    public static final long SEGMENT_SIZE = 16*1024*1024;
+    // Tamaño máximo de un registro
+    public static final int MAX_RECORD_SIZE = 64*1024*1024;
+    // Número de segmentos descomprimidos que se mantienen en memoria
+    public static final int SEGMENT_CACHE_SIZE = 4;
+    
+    private static final int HEADER_SIZE = 8;
+    private static final int COMPRESSED_HEADER_SIZE = 9;
+    private static final byte FORMAT_PLAIN = 0;
+    private static final byte FORMAT_CODEC = 1;
+    
+    private final File dir;
+    private final long segmentSize;
+    private final SegmentCodec codec;
+    private final ArrayList<Record> records = new ArrayList<>();
+    private final BitSet compressed = new BitSet();
+    private final Map<Integer, CompletableFuture<ByteBuffer>> inflated =
+        new LinkedHashMap<Integer, CompletableFuture<ByteBuffer>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, CompletableFuture<ByteBuffer>> eldest) {
+                return size() > SEGMENT_CACHE_SIZE;
+            }
+        };
+    private int segmentCount = 0;
+    private RandomAccessFile active = null;
+    
+    
+    /**
+     * Block Log
+     * @param path directorio de los segmentos
+     * @throws IOException 
+     */
+    public BlockLog(String path) throws IOException {
+        this(path, SEGMENT_SIZE);
+    }
+    
+    
+    /**
+     * Block Log
+     * @param path directorio de los segmentos
+     * @param segmentSize tamaño a partir del cual se empieza un segmento nuevo
+     * @throws IOException 
+     */
+    public BlockLog(String path, long segmentSize) throws IOException {
+        this(path, segmentSize, null);
+    }
+    
+    
+    /**
+     * Block Log
+     * @param path directorio de los segmentos
+     * @param segmentSize tamaño a partir del cual se empieza un segmento nuevo
+     * @param codec transformación que se aplica a los segmentos antes de
+     *              comprimirlos (o null)
+     * @throws IOException 
+     */
+    public BlockLog(String path, long segmentSize, SegmentCodec codec) throws IOException {
+        dir = new File(path);
+        this.segmentSize = segmentSize;
+        this.codec = codec;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("No se pudo crear " + path);
+        }
+        recover();
+        openActive();
+    }
+    
+    
+    /**
+     * Segment file
+     * @param segment
+     * @return fichero del segmento sin comprimir
+     */
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("blk%05d.dat", segment));
+    }
+    
+    
+    /**
+     * Compressed file
+     * @param segment
+     * @return fichero del segmento comprimido
+     */
+    private File compressedFile(int segment) {
+        return new File(dir, String.format("blk%05d.dz", segment));
+    }
+    
+    
+    /**
+     * Temp file
+     * @param segment
+     * @return fichero temporal usado al comprimir el segmento
+     */
+    private File tempFile(int segment) {
+        return new File(dir, String.format("blk%05d.tmp", segment));
+    }
+    
+    
+    /**
+     * Index file
+     * @param segment
+     * @return fichero con la tabla de registros del segmento comprimido
+     */
+    private File indexFile(int segment) {
+        return new File(dir, String.format("blk%05d.idx", segment));
+    }
+    
+    
+    /**
+     * Index temp file
+     * @param segment
+     * @return fichero temporal usado al escribir la tabla de registros
+     */
+    private File indexTempFile(int segment) {
+        return new File(dir, String.format("blk%05d.idx.tmp", segment));
+    }
+    
+    
+    /**
+     * Recover
+     * 
+     * Recorre todos los segmentos comprobando cada registro. En cuanto uno no
+     * es válido, trunca su segmento en ese punto y borra los siguientes. Los
+     * segmentos comprimidos con tabla de registros no se descomprimen.
+     * 
+     * @throws IOException si algún segmento comprimido está dañado
+     */
+    private void recover() throws IOException {
+        while (segmentFile(segmentCount).exists() ||
+            compressedFile(segmentCount).exists()) segmentCount++;
+        
+        // Si el segmento llegó a comprimirse, la copia sin comprimir sobra
+        for (int segment=0; segment<segmentCount; segment++) {
+            tempFile(segment).delete();
+            indexTempFile(segment).delete();
+            if (compressedFile(segment).exists()) {
+                segmentFile(segment).delete();
+                compressed.set(segment);
+            } else {
+                indexFile(segment).delete();
+            }
+        }
+        
+        for (int segment=0; segment<segmentCount; segment++) {
+            if (compressed.get(segment)) {
+                if (readIndex(segment)) continue;
+                
+                // Sin tabla válida: comprobar el segmento entero y rehacerla
+                ByteBuffer data = inflate(segment);
+                if ((data == null) || (scanSegment(segment, data) != data.limit())) {
+                    throw new IOException("Segmento comprimido dañado: " +
+                        compressedFile(segment).getName());
+                }
+                writeIndex(segment);
+                continue;
+            }
+            
+            ByteBuffer data = readRaw(segment, 0, (int) segmentFile(segment).length());
+            long validLength = scanSegment(segment, data);
+            if (validLength == data.limit()) continue;
+            
+            // Cola rota: truncar y descartar segmentos posteriores
+            try (RandomAccessFile raf = new RandomAccessFile(segmentFile(segment), "rw")) {
+                raf.setLength(validLength);
+            }
+            for (int i=segment+1; i<segmentCount; i++) deleteSegment(i);
+            segmentCount = segment + 1;
+            break;
+        }
+        
+        // Comprimir segmentos cerrados que aún no lo estén
+        for (int segment=0; segment<segmentCount-1; segment++) {
+            if (!compressed.get(segment)) compress(segment);
+        }
+    }
+    
+    
+    /**
+     * Scan segment
+     * @param segment
+     * @param data contenido del segmento
+     * @return bytes válidos desde el principio del segmento
+     */
+    private long scanSegment(int segment, ByteBuffer data) {
+        int length = data.limit();
+        int pos = 0;
+        while (pos + HEADER_SIZE <= length) {
+            int size = data.getInt(pos);
+            int crc = data.getInt(pos + 4);
+            if ((size < 0) || (size > MAX_RECORD_SIZE)) break;
+            if ((long) pos + HEADER_SIZE + size > length) break;
+            ByteBuffer payload = data.duplicate();
+            payload.limit(pos + HEADER_SIZE + size);
+            payload.position(pos + HEADER_SIZE);
+            if (crc(payload) != crc) break;
+            records.add(new Record(segment, pos + HEADER_SIZE, size));
+            pos += HEADER_SIZE + size;
+        }
+        return pos;
+    }
+    
+    
+    /**
+     * Write index
+     * 
+     * Guarda la tabla de registros de un segmento. Como al comprimir, se
+     * escribe en un fichero temporal que se renombra al terminar.
+     * 
+     * @param segment
+     * @throws IOException 
+     */
+    private void writeIndex(int segment) throws IOException {
+        int count = 0;
+        for (Record r : records) {
+            if (r.segment == segment) count++;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + count*4 + 4);
+        buf.putInt(count);
+        for (Record r : records) {
+            if (r.segment == segment) buf.putInt(r.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        
+        File tmp = indexTempFile(segment);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), indexFile(segment).toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    
+    /**
+     * Read index
+     * 
+     * Carga los registros de un segmento comprimido a partir de su tabla,
+     * comprobando que cubren exactamente el tamaño original del segmento.
+     * 
+     * @param segment
+     * @return success
+     * @throws IOException 
+     */
+    private boolean readIndex(int segment) throws IOException {
+        File file = indexFile(segment);
+        if (!file.exists()) return false;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buf.limit() < 8) return false;
+        int count = buf.getInt(0);
+        if ((count < 0) || ((long) count*4 + 8 != buf.limit())) return false;
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.limit() - 4);
+        if ((int) crc.getValue() != buf.getInt(buf.limit() - 4)) return false;
+        
+        // Tamaño original del segmento (cabecera del .dz)
+        int rawLength;
+        try (RandomAccessFile raf = new RandomAccessFile(compressedFile(segment), "r")) {
+            if (raf.length() < 4) return false;
+            rawLength = raf.readInt();
+        }
+        
+        ArrayList<Record> res = new ArrayList<>(count);
+        long pos = 0;
+        for (int i=0; i<count; i++) {
+            int length = buf.getInt(4 + i*4);
+            if ((length < 0) || (length > MAX_RECORD_SIZE)) return false;
+            res.add(new Record(segment, pos + HEADER_SIZE, length));
+            pos += HEADER_SIZE + length;
+        }
+        if (pos != rawLength) return false;
+        records.addAll(res);
+        return true;
+    }
+    
+    
+    /**
+     * Open active
+     * 
+     * Abre el último segmento para añadir registros, creándolo si no existe.
+     * Si el último segmento ya está comprimido se empieza uno nuevo.
+     */
+    private void openActive() throws IOException {
+        if ((segmentCount == 0) || compressed.get(segmentCount - 1)) segmentCount++;
+        active = new RandomAccessFile(segmentFile(segmentCount - 1), "rw");
+        active.seek(active.length());
+    }
+    
+    
+    /**
+     * CRC
+     * @param payload
+     * @return crc
+     */
+    private static int crc(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+    
+    
+    /**
+     * Append
+     * 
+     * Añade un registro al final. Para que sea persistente hay que llamar
+     * después a `sync()`.
+     * 
+     * Si la escritura falla a medias (p. ej. por falta de espacio) se quitan
+     * los bytes escritos, y en cualquier caso el siguiente registro se escribe
+     * justo después del último completo, para que al arrancar no se descarte
+     * todo lo que venga detrás.
+     * 
+     * @param payload
+     * @throws IOException 
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        // Empezar un segmento nuevo si el actual está lleno
+        long pos = getActiveEnd();
+        if ((pos > 0) && (pos + HEADER_SIZE + payload.length > segmentSize)) {
+            active.getFD().sync();
+            active.close();
+            try {
+                compress(segmentCount - 1);
+            } catch (IOException e) {
+                // Se queda sin comprimir; se volverá a intentar al arrancar
+            }
+            segmentCount++;
+            openActive();
+            pos = 0;
+        }
+        
+        // Escribir registro
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buf.putInt(payload.length);
+        buf.putInt(crc(ByteBuffer.wrap(payload)));
+        buf.put(payload);
+        buf.flip();
+        FileChannel channel = active.getChannel();
+        try {
+            channel.position(pos);
+            while (buf.hasRemaining()) channel.write(buf);
+        } catch (IOException e) {
+            try {
+                channel.truncate(pos);
+            } catch (IOException ex) {}
+            throw e;
+        }
+        records.add(new Record(segmentCount - 1, pos + HEADER_SIZE, payload.length));
+    }
+    
+    
+    /**
+     * Get active end
+     * @return posición donde termina el último registro del segmento activo
+     */
+    private long getActiveEnd() {
+        if (records.isEmpty()) return 0;
+        Record last = records.get(records.size() - 1);
+        return (last.segment == segmentCount - 1) ? last.offset + last.length : 0;
+    }
+    
+    
+    /**
+     * Sync
+     * 
+     * Fuerza la escritura a disco de los registros añadidos.
+     * 
+     * @throws IOException 
+     */
+    public synchronized void sync() throws IOException {
+        active.getChannel().force(false);
+    }
+    
+    
+    /**
+     * Read
+     * 
+     * Devuelve el contenido de un registro como un buffer de solo lectura.
+     * 
+     * Si hay que descomprimir su segmento se hace sin bloquear el registro,
+     * para no frenar a `append()` mientras tanto.
+     * 
+     * @param index número de registro
+     * @return contenido
+     * @throws IOException 
+     */
+    public ByteBuffer read(int index) throws IOException {
+        Record r;
+        synchronized (this) {
+            r = records.get(index);
+            if (!compressed.get(r.segment)) {
+                return readRaw(r.segment, r.offset, r.length).asReadOnlyBuffer();
+            }
+        }
+        ByteBuffer buf = getCompressed(r.segment).duplicate();
+        buf.limit((int) (r.offset + r.length));
+        buf.position((int) r.offset);
+        return buf.slice();
+    }
+    
+    
+    /**
+     * Get compressed
+     * 
+     * Devuelve el contenido descomprimido de un segmento comprimido, usando
+     * la caché si ya se había descomprimido antes. El primer hilo que lo pide
+     * lo descomprime fuera del cerrojo y el resto espera a ese resultado.
+     * 
+     * @param segment
+     * @return data
+     * @throws IOException 
+     */
+    private ByteBuffer getCompressed(int segment) throws IOException {
+        CompletableFuture<ByteBuffer> load;
+        boolean owner = false;
+        synchronized (this) {
+            load = inflated.get(segment);
+            if (load == null) {
+                load = new CompletableFuture<>();
+                inflated.put(segment, load);
+                owner = true;
+            }
+        }
+        
+        if (owner) {
+            ByteBuffer data = null;
+            try {
+                data = inflate(segment);
+            } finally {
+                if (data != null) {
+                    load.complete(data);
+                } else {
+                    load.completeExceptionally(new IOException("Segmento dañado: " + segment));
+                    synchronized (this) {
+                        inflated.remove(segment, load);
+                    }
+                }
+            }
+        }
+        
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+    
+    
+    /**
+     * Read raw
+     * 
+     * Lee un trozo de un segmento sin comprimir. Para el segmento activo se
+     * usa el fichero ya abierto; para el resto se abre solo durante la lectura.
+     * 
+     * @param segment
+     * @param offset posición dentro del segmento
+     * @param length bytes a leer
+     * @return data
+     * @throws IOException 
+     */
+    private ByteBuffer readRaw(int segment, long offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        if ((active != null) && (segment == segmentCount - 1)) {
+            readFully(active.getChannel(), data, offset);
+        } else {
+            try (RandomAccessFile raf = new RandomAccessFile(segmentFile(segment), "r")) {
+                readFully(raf.getChannel(), data, offset);
+            }
+        }
+        data.flip();
+        return data;
+    }
+    
+    
+    /**
+     * Read fully
+     * @param channel
+     * @param data buffer a llenar
+     * @param offset posición de inicio en el fichero
+     * @throws IOException 
+     */
+    private static void readFully(FileChannel channel, ByteBuffer data, long offset) throws IOException {
+        while (data.hasRemaining()) {
+            int n = channel.read(data, offset + data.position());
+            if (n < 0) throw new IOException("Fin de fichero inesperado");
+        }
+    }
+    
+    
+    /**
+     * Compress
+     * 
+     * Comprime un segmento cerrado. Se escribe primero en un fichero temporal
+     * que se renombra al terminar, así que un corte a medias deja intacto el
+     * segmento original.
+     * 
+     * @param segment
+     * @throws IOException 
+     */
+    private void compress(int segment) throws IOException {
+        writeIndex(segment);
+        File raw = segmentFile(segment);
+        File tmp = tempFile(segment);
+        byte[] data = Files.readAllBytes(raw.toPath());
+        byte[] payload = (codec == null) ? data : codec.pack(data);
+        ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_SIZE);
+        header.putInt(data.length);
+        header.put((codec == null) ? FORMAT_PLAIN : FORMAT_CODEC);
+        header.putInt(payload.length);
+        
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            fileOut.write(header.array());
+            DeflaterOutputStream out = new DeflaterOutputStream(fileOut, deflater, 64*1024);
+            out.write(payload);
+            out.finish();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        Files.move(tmp.toPath(), compressedFile(segment).toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+        raw.delete();
+        compressed.set(segment);
+    }
+    
+    
+    /**
+     * Inflate
+     * @param segment
+     * @return contenido del segmento o null si no se pudo descomprimir
+     * @throws IOException 
+     */
+    private ByteBuffer inflate(int segment) throws IOException {
+        byte[] data = Files.readAllBytes(compressedFile(segment).toPath());
+        if (data.length < COMPRESSED_HEADER_SIZE) return null;
+        ByteBuffer header = ByteBuffer.wrap(data);
+        int rawLength = header.getInt();
+        byte format = header.get();
+        int payloadLength = header.getInt();
+        long maxLength = segmentSize + HEADER_SIZE + MAX_RECORD_SIZE;
+        if ((rawLength < 0) || (rawLength > maxLength)) return null;
+        if ((payloadLength < 0) || (payloadLength > 2*maxLength)) return null;
+        if ((format == FORMAT_PLAIN) && (payloadLength != rawLength)) return null;
+        if ((format == FORMAT_CODEC) && (codec == null)) return null;
+        if ((format != FORMAT_PLAIN) && (format != FORMAT_CODEC)) return null;
+        
+        Inflater inflater = new Inflater();
+        byte[] payload = new byte[payloadLength];
+        try {
+            inflater.setInput(data, COMPRESSED_HEADER_SIZE, data.length - COMPRESSED_HEADER_SIZE);
+            int n = 0;
+            while (n < payloadLength) {
+                int read = inflater.inflate(payload, n, payloadLength - n);
+                if ((read == 0) && (inflater.finished() || inflater.needsInput() ||
+                    inflater.needsDictionary())) break;
+                n += read;
+            }
+            if (n != payloadLength) return null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+        
+        byte[] raw = (format == FORMAT_PLAIN) ? payload : codec.unpack(payload, rawLength);
+        if (raw == null) return null;
+        return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+    }
+    
+    
+    /**
+     * Restore raw
+     * 
+     * Sustituye un segmento comprimido por los primeros bytes de su contenido
+     * sin comprimir, para poder seguir añadiendo registros a continuación.
+     * 
+     * @param segment
+     * @param data contenido del segmento
+     * @param length bytes que se conservan
+     * @throws IOException 
+     */
+    private void restoreRaw(int segment, ByteBuffer data, long length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(segmentFile(segment))) {
+            ByteBuffer prefix = data.duplicate();
+            prefix.position(0);
+            prefix.limit((int) length);
+            out.getChannel().write(prefix);
+            out.getFD().sync();
+        }
+        compressedFile(segment).delete();
+        indexFile(segment).delete();
+        compressed.clear(segment);
+        inflated.remove(segment);
+    }
+    
+    
+    /**
+     * Delete segment
+     * @param segment 
+     */
+    private void deleteSegment(int segment) {
+        segmentFile(segment).delete();
+        compressedFile(segment).delete();
+        indexFile(segment).delete();
+        compressed.clear(segment);
+        inflated.remove(segment);
+    }
+    
+    
+    /**
+     * Truncate
+     * 
+     * Descarta todos los registros a partir del indicado.
+     * 
+     * @param count número de registros que se conservan
+     * @throws IOException 
+     */
+    public synchronized void truncate(int count) throws IOException {
+        if (count >= records.size()) return;
+        Record first = records.get(count);
+        long length = first.offset - HEADER_SIZE;
+        ByteBuffer data = compressed.get(first.segment) ? getCompressed(first.segment) : null;
+        
+        active.close();
+        try {
+            if (data != null) {
+                restoreRaw(first.segment, data, length);
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(segmentFile(first.segment), "rw")) {
+                    raf.setLength(length);
+                }
+            }
+            for (int i=first.segment+1; i<segmentCount; i++) deleteSegment(i);
+            segmentCount = first.segment + 1;
+            records.subList(count, records.size()).clear();
+        } finally {
+            openActive();
+        }
+    }
+    
+    
+    /**
+     * Size
+     * @return número de registros
+     */
+    public synchronized int size() {
+        return records.size();
+    }
+    
+    
+    /**
+     * Close
+     */
+    public synchronized void close() {
+        try {
+            active.close();
+        } catch (Exception e) {}
+    }
+    
+    
+    /**
+     * Segment codec
+     * 
+     * Transformación reversible que se aplica al contenido de un segmento
+     * cerrado antes de comprimirlo.
+     */
+    public interface SegmentCodec {
+        
+        /**
+         * Pack
+         * @param segment contenido del segmento
+         * @return contenido transformado
+         */
+        byte[] pack(byte[] segment);
+        
+        
+        /**
+         * Unpack
+         * @param packed contenido transformado
+         * @param length longitud del contenido original
+         * @return contenido original o null si no es válido
+         */
+        byte[] unpack(byte[] packed, int length);
+        
+    }
+    
+    
+    /**
+     * Record
+     * 
+     * Posición de un registro dentro de los segmentos.
+     */
+    private static class Record {
+        
+        private final int segment;
+        private final long offset;
+        private final int length;
+        
+        
+        /**
+         * Record
+         * @param segment
+         * @param offset posición del contenido (tras la cabecera)
+         * @param length 
+         */
+        Record(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+    }
+    
+}
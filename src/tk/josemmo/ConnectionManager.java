@@ -5,31 +5,48 @@
 
 package tk.josemmo;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
+import java.util.concurrent.CopyOnWriteArrayList;
 import tk.josemmo.cutrecoin.Block;
 import tk.josemmo.cutrecoin.Cutrecoin;
+import tk.josemmo.cutrecoin.Hash256;
 import tk.josemmo.cutrecoin.Transaction;
 
 /**
+ * Connection Manager
+ * 
+ * Los mensajes entre nodos se envían con el formato:
+ *   tipo            1 byte (transacción, bloque u orden)
+ *   longitud        4 bytes
+ *   contenido       codificación binaria del objeto o la orden en UTF-8
  *
  * @author josemmo
  * @author carlos
  */
 public class ConnectionManager {
+    public static final byte MSG_TRANSACTION = 1;
+    public static final byte MSG_BLOCK = 2;
+    public static final byte MSG_COMMAND = 3;
+    // Tamaño máximo de un mensaje
+    public static final int MAX_MESSAGE_SIZE = 16*1024*1024;
+    
     private Cutrecoin cutrecoin;
     private ServerSocket server;
     private final Thread discoverThread;
-    private final ArrayList<InetAddress> peers = new ArrayList<>();
-    private boolean isRunning = true;
-    private boolean isSynced = false;
+    private final CopyOnWriteArrayList<InetAddress> peers = new CopyOnWriteArrayList<>();
+    private volatile boolean isRunning = true;
+    private volatile boolean isSynced = false;
     
     
     /**
@@ -102,12 +119,12 @@ public class ConnectionManager {
      * @param outputStream
      * @param message 
      */
-    private void onNewMessage(ObjectOutputStream outputStream, Object message) {
+    private void onNewMessage(DataOutputStream outputStream, Object message) {
         if (message instanceof Transaction) {
             cutrecoin.addPendingTransaction((Transaction) message);
         } else if (message instanceof Block) {
             Block b = (Block) message;
-            if (cutrecoin.addCandidateBlock(b)) {
+            if (cutrecoin.addCandidateBlock(b) && (b.getPreviousHash() != null)) {
                 send(outputStream, "getBlock=" + b.getPreviousHash());
             }
         } else if (message instanceof String) {
@@ -119,7 +136,8 @@ public class ConnectionManager {
             } else if (cmd.startsWith("getBlock=")) {
                 String hash = cmd.split("=")[1];
                 Block b = hash.equals("latest") ?
-                    cutrecoin.getLastBlock() : cutrecoin.getBlock(hash);
+                    cutrecoin.getLastBlock() :
+                    cutrecoin.getBlock(Hash256.fromHex(hash));
                 if (b != null) send(outputStream, b);
             }
         }
@@ -138,9 +156,9 @@ public class ConnectionManager {
         new Thread(() -> {
             try {
                 // Obtener mensaje
-                ObjectOutputStream outputStream = new ObjectOutputStream(s.getOutputStream());
-                ObjectInputStream inputStream = new ObjectInputStream(s.getInputStream());
-                Object message = inputStream.readObject();
+                DataOutputStream outputStream = openOutput(s);
+                DataInputStream inputStream = new DataInputStream(s.getInputStream());
+                Object message = readMessage(inputStream);
                 
                 // Interpretar mensaje
                 onNewMessage(outputStream, message);
@@ -167,10 +185,7 @@ public class ConnectionManager {
             s.close();
             
             // Añadir a la lista de nodos
-            for (InetAddress ia : peers) {
-                if (ia.equals(ip)) return;
-            }
-            peers.add(ip);
+            peers.addIfAbsent(ip);
         } catch (Exception e) {
             peers.remove(ip);
         }
@@ -196,14 +211,78 @@ public class ConnectionManager {
      * @param stream
      * @param message 
      */
-    private void send(ObjectOutputStream stream, Object message) {
+    private void send(DataOutputStream stream, Object message) {
         try {
-            stream.writeObject(message);
+            writeMessage(stream, message);
             stream.flush();
         } catch (Exception e) {}
     }
     
     
+    /**
+     * Open output
+     * @param s
+     * @return stream
+     * @throws IOException 
+     */
+    private static DataOutputStream openOutput(Socket s) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+    }
+    
+    
+    /**
+     * Write message
+     * @param stream
+     * @param message
+     * @throws IOException 
+     */
+    private static void writeMessage(DataOutputStream stream, Object message)
+            throws IOException {
+        byte type;
+        byte[] payload;
+        if (message instanceof Transaction) {
+            type = MSG_TRANSACTION;
+            payload = ((Transaction) message).encode();
+        } else if (message instanceof Block) {
+            type = MSG_BLOCK;
+            payload = ((Block) message).encode();
+        } else {
+            type = MSG_COMMAND;
+            payload = message.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        stream.writeByte(type);
+        stream.writeInt(payload.length);
+        stream.write(payload);
+    }
+    
+    
+    /**
+     * Read message
+     * @param stream
+     * @return message o null si no es válido
+     * @throws IOException 
+     */
+    private static Object readMessage(DataInputStream stream) throws IOException {
+        byte type = stream.readByte();
+        int length = stream.readInt();
+        if ((length < 0) || (length > MAX_MESSAGE_SIZE)) {
+            throw new IOException("Mensaje demasiado grande");
+        }
+        byte[] payload = new byte[length];
+        stream.readFully(payload);
+        switch (type) {
+            case MSG_TRANSACTION:
+                return Transaction.decode(ByteBuffer.wrap(payload));
+            case MSG_BLOCK:
+                return Block.decode(ByteBuffer.wrap(payload));
+            case MSG_COMMAND:
+                return new String(payload, StandardCharsets.UTF_8);
+            default:
+                return null;
+        }
+    }
+    
+    
     /**
      * Propagate
      * 
@@ -220,15 +299,15 @@ public class ConnectionManager {
                     Socket s = new Socket();
                     s.connect(new InetSocketAddress(ip, Cutrecoin.PORT),
                         Cutrecoin.TIMEOUT);
-                    ObjectOutputStream outputStream = new ObjectOutputStream(s.getOutputStream());
-                    ObjectInputStream inputStream = new ObjectInputStream(s.getInputStream());
+                    DataOutputStream outputStream = openOutput(s);
+                    DataInputStream inputStream = new DataInputStream(s.getInputStream());
                     
                     // Enviar mensaje
                     send(outputStream, message);
                     
                     // Esperar una posible respuesta
                     try {
-                        Object response = inputStream.readObject();
+                        Object response = readMessage(inputStream);
                         onNewMessage(outputStream, response);
                     } catch (Exception e) {}
                     
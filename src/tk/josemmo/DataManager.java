@@ -5,20 +5,30 @@
 
 package tk.josemmo;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Data Manager
  * 
+ * Los bloques, las transacciones pendientes y las credenciales se guardan con
+ * su codificación binaria (`saveBytes`). La serialización de Java solo se
+ * conserva para leer ficheros de versiones anteriores.
+ * 
  * @author josemmo
  * @author carlos
  */
 public class DataManager {
     
     public static final String BLOCKCHAIN_PATH = "blockchain.dat";
+    public static final String BLOCKS_PATH = "blocks";
+    public static final String INDEX_PATH = "index.dat";
     public static final String PENDING_PATH = "pending.dat";
     public static final String CREDENTIALS_PATH = "credentials.dat";
     
@@ -61,4 +71,45 @@ public class DataManager {
         }
     }
     
+    
+    /**
+     * Save bytes
+     * 
+     * Escribe primero en un fichero temporal y lo renombra al terminar, de
+     * forma que un corte a medias deja intacta la versión anterior.
+     * 
+     * @param path
+     * @param data
+     * @return success
+     */
+    public static boolean saveBytes(String path, byte[] data) {
+        File tmp = new File(path + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(data);
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), Paths.get(path),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (Exception i) {
+            tmp.delete();
+            return false;
+        }
+    }
+    
+    
+    /**
+     * Read bytes
+     * @param path
+     * @return data o null si no se pudo leer
+     */
+    public static byte[] readBytes(String path) {
+        try {
+            return Files.readAllBytes(Paths.get(path));
+        } catch (Exception i) {
+            return null;
+        }
+    }
+    
 }
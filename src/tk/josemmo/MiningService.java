@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import tk.josemmo.cutrecoin.Block;
+import tk.josemmo.cutrecoin.Cutrecoin;
+import tk.josemmo.cutrecoin.Hash256;
+import tk.josemmo.cutrecoin.Miner;
+import tk.josemmo.cutrecoin.Transaction;
+
+/**
+ * Mining Service
+ * 
+ * Mina bloques continuamente en segundo plano. Cada vez que cambia el último
+ * bloque de la cadena o las transacciones pendientes, aborta la búsqueda en
+ * curso y vuelve a empezar con una plantilla de bloque actualizada.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class MiningService {
+    
+    private final Cutrecoin cutrecoin;
+    private final ConnectionManager cm;
+    private final PublicKey minerKey;
+    private final int threads;
+    private Thread thread = null;
+    private volatile boolean isRunning = false;
+    private volatile Miner currentMiner = null;
+    private volatile long currentIndex = -1;
+    private volatile long blocksMined = 0;
+    private volatile long finishedHashes = 0;
+    private volatile long startTime = 0;
+    
+    
+    /**
+     * Mining Service
+     * @param cc
+     * @param cm
+     * @param minerKey
+     * @param threads 
+     */
+    public MiningService(Cutrecoin cc, ConnectionManager cm, PublicKey minerKey,
+                         int threads) {
+        this.cutrecoin = cc;
+        this.cm = cm;
+        this.minerKey = minerKey;
+        this.threads = threads;
+        
+        // Abortar el minado en curso cuando la plantilla queda obsoleta
+        cutrecoin.addChangeListener(() -> {
+            Miner miner = currentMiner;
+            if (miner != null) miner.cancel();
+        });
+    }
+    
+    
+    /**
+     * Mining Service
+     * @param cc
+     * @param cm
+     * @param minerKey 
+     */
+    public MiningService(Cutrecoin cc, ConnectionManager cm, PublicKey minerKey) {
+        this(cc, cm, minerKey, Runtime.getRuntime().availableProcessors());
+    }
+    
+    
+    /**
+     * Start
+     */
+    public synchronized void start() {
+        if (isRunning) return;
+        isRunning = true;
+        finishedHashes = 0;
+        startTime = System.currentTimeMillis();
+        thread = new Thread(this::run);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    
+    /**
+     * Stop
+     */
+    public synchronized void stop() {
+        if (!isRunning) return;
+        isRunning = false;
+        Miner miner = currentMiner;
+        if (miner != null) miner.cancel();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+    
+    
+    /**
+     * Run
+     * 
+     * Bucle principal del servicio.
+     */
+    private void run() {
+        while (isRunning) {
+            // Preparar plantilla con el estado actual de la cadena
+            long version = cutrecoin.getVersion();
+            Block block = buildTemplate();
+            Miner miner = new Miner(threads);
+            currentMiner = miner;
+            currentIndex = block.getIndex();
+            
+            // Si algo ha cambiado mientras tanto, empezar de nuevo
+            if (!isRunning || (cutrecoin.getVersion() != version)) {
+                currentMiner = null;
+                continue;
+            }
+            
+            // Minar hasta encontrar el nonce o hasta que se cancele
+            boolean found = miner.mine(block);
+            currentMiner = null;
+            finishedHashes += miner.getHashCount();
+            if (!found || !isRunning) continue;
+            
+            // Guardar y propagar bloque
+            if (cutrecoin.addBlock(block)) {
+                blocksMined++;
+                cm.propagate(block);
+            }
+        }
+        currentIndex = -1;
+    }
+    
+    
+    /**
+     * Build template
+     * 
+     * Crea un bloque sobre el último de la cadena con las transacciones
+     * pendientes más prioritarias.
+     * 
+     * @return block
+     */
+    private Block buildTemplate() {
+        Block lastBlock = cutrecoin.getLastBlock();
+        long blockIndex = (lastBlock == null) ? 0 : lastBlock.getIndex() + 1;
+        Hash256 prevHash = (lastBlock == null) ? null : lastBlock.getHash();
+        ArrayList<Transaction> transactions =
+            cutrecoin.getPendingTransactions(Cutrecoin.MAX_BLOCK_TRANSACTIONS);
+        return new Block(blockIndex, transactions, prevHash, minerKey,
+            Cutrecoin.MAX_FEE);
+    }
+    
+    
+    /**
+     * Is running
+     * @return isRunning
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+    
+    
+    /**
+     * Get current index
+     * @return índice del bloque que se está minando o -1
+     */
+    public long getCurrentIndex() {
+        return currentIndex;
+    }
+    
+    
+    /**
+     * Get blocks mined
+     * @return blocksMined
+     */
+    public long getBlocksMined() {
+        return blocksMined;
+    }
+    
+    
+    /**
+     * Get hash count
+     * @return hashes calculados desde que se inició el servicio
+     */
+    public long getHashCount() {
+        Miner miner = currentMiner;
+        return finishedHashes + ((miner == null) ? 0 : miner.getHashCount());
+    }
+    
+    
+    /**
+     * Get hash rate
+     * @return hashes por segundo
+     */
+    public double getHashRate() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (!isRunning || (elapsed <= 0)) return 0;
+        return getHashCount() * 1000.0 / elapsed;
+    }
+    
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Address Registry
+ * 
+ * Asigna a cada dirección (clave pública) un identificador entero compacto
+ * la primera vez que aparece, de forma que comparar direcciones sea comparar
+ * dos `int`. Los identificadores solo son válidos dentro del proceso: no se
+ * guardan en disco ni se envían por la red.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class AddressRegistry {
+    
+    // Identificador que nunca se asigna a ninguna dirección
+    public static final int NONE = 0;
+    
+    private static final ConcurrentHashMap<ByteBuffer, Integer> ids = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, PublicKey> keys = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger(NONE + 1);
+    
+    
+    /**
+     * Get ID
+     * 
+     * Devuelve el identificador de la dirección, registrándola si es nueva.
+     * 
+     * @param key
+     * @return id o `NONE` si la clave es null
+     */
+    public static int getId(PublicKey key) {
+        if (key == null) return NONE;
+        ByteBuffer encoded = ByteBuffer.wrap(key.getEncoded());
+        Integer id = ids.get(encoded);
+        if (id != null) return id;
+        id = ids.computeIfAbsent(encoded, k -> {
+            int newId = nextId.getAndIncrement();
+            keys.put(newId, key);
+            return newId;
+        });
+        return id;
+    }
+    
+    
+    /**
+     * Get key
+     * @param id
+     * @return key o null si no existe
+     */
+    public static PublicKey getKey(int id) {
+        return keys.get(id);
+    }
+    
+    
+    /**
+     * Size
+     * @return número de direcciones registradas
+     */
+    public static int size() {
+        return ids.size();
+    }
+    
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Append-only list
+ * 
+ * Lista a la que solo se añaden elementos al final desde un único hilo
+ * escritor y que se puede leer desde cualquier hilo sin bloqueos. Cada
+ * elemento se escribe antes de publicar el nuevo tamaño (volatile), así que
+ * un lector que ve un tamaño `n` ve también los `n` primeros elementos.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+final class AppendOnlyList<T> {
+    
+    private volatile Object[] items = new Object[16];
+    private volatile int size = 0;
+    
+    
+    /**
+     * Add
+     * 
+     * Solo debe llamarse desde el hilo escritor.
+     * 
+     * @param item 
+     */
+    void add(T item) {
+        Object[] arr = items;
+        int n = size;
+        if (n == arr.length) arr = Arrays.copyOf(arr, n * 2);
+        arr[n] = item;
+        items = arr;
+        size = n + 1;
+    }
+    
+    
+    /**
+     * Get
+     * @param index
+     * @return item
+     */
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        if ((index < 0) || (index >= size)) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return (T) items[index];
+    }
+    
+    
+    /**
+     * Get last
+     * @return último elemento o null si está vacía
+     */
+    @SuppressWarnings("unchecked")
+    T getLast() {
+        int n = size;
+        return (n == 0) ? null : (T) items[n - 1];
+    }
+    
+    
+    /**
+     * Size
+     * @return size
+     */
+    int size() {
+        return size;
+    }
+    
+    
+    /**
+     * To list
+     * @return copia de los elementos
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList<T> toList() {
+        int n = size;
+        Object[] arr = items;
+        ArrayList<T> res = new ArrayList<>(n);
+        for (int i=0; i<n; i++) res.add((T) arr[i]);
+        return res;
+    }
+    
+}
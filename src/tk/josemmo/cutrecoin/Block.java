@@ -5,7 +5,13 @@
 
 package tk.josemmo.cutrecoin;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 
@@ -14,18 +20,43 @@ import java.util.ArrayList;
  * 
  * Define un bloque del `blockchain`. Contiene transacciones.
  * 
+ * El hash se calcula sobre una cabecera binaria de tamaño fijo cuya única
+ * parte variable durante el minado es el nonce, que va al final. Las
+ * transacciones se incluyen en la cabecera a través de la raíz de su árbol de
+ * Merkle. El resto de
+ * la cabecera se absorbe una sola vez en un `MessageDigest` (midstate) que
+ * después se clona para cada intento.
+ * 
+ * Para guardarse y enviarse por la red se codifica en binario:
+ *   versión         1 byte
+ *   índice          8 bytes
+ *   hash anterior   1 byte (0 si no tiene) + 32 bytes
+ *   minero          esquema (1 byte) + longitud (2 bytes) + clave X.509
+ *   comisión        4 bytes (float)
+ *   nonce           8 bytes
+ *   transacciones   número (4 bytes) + cada una codificada
+ * El hash no se guarda: se recalcula al decodificar.
+ * 
  * @author josemmo
  * @author carlos
  */
 public class Block implements Serializable {
     
+    private static final long serialVersionUID = 1L;
+    
+    // Versión del formato binario
+    public static final byte FORMAT_VERSION = 1;
+    
     private final long index;
     private final ArrayList<Transaction> transactions;
     private long nonce = 0;
-    private String hash;
-    private final String previous_hash;
+    private transient Hash256 hash;
+    private final Hash256 previous_hash;
     private final PublicKey miner;
     private final float fee;
+    private transient int minerId = AddressRegistry.NONE;
+    private transient MerkleTree merkleTree;
+    private transient MessageDigest midstate;
     
     
     /**
@@ -37,16 +68,87 @@ public class Block implements Serializable {
      * @param fee 
      */
     public Block(long index, ArrayList<Transaction> transactions,
-                 String previous_hash, PublicKey miner, float fee) {
+                 Hash256 previous_hash, PublicKey miner, float fee) {
+        this(index, transactions, previous_hash, miner, fee, 0);
+    }
+    
+    
+    /**
+     * Block
+     * @param index
+     * @param transactions
+     * @param previous_hash
+     * @param miner
+     * @param fee
+     * @param nonce 
+     */
+    private Block(long index, ArrayList<Transaction> transactions,
+                  Hash256 previous_hash, PublicKey miner, float fee, long nonce) {
         this.index = index;
-        this.transactions = transactions;
+        this.transactions = new ArrayList<>(transactions);
         this.previous_hash = previous_hash;
         this.miner = miner;
         this.fee = fee;
+        this.nonce = nonce;
         recalculateHash();
     }
     
     
+    /**
+     * Encode
+     * @return bytes
+     */
+    public byte[] encode() {
+        byte[] txs = Transaction.encodeAll(transactions);
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 1 + Hash256.SIZE +
+            Transaction.keySize(miner) + 4 + 8 + txs.length);
+        buf.put(FORMAT_VERSION);
+        buf.putLong(index);
+        if (previous_hash == null) {
+            buf.put((byte) 0);
+            buf.put(new byte[Hash256.SIZE]);
+        } else {
+            buf.put((byte) 1);
+            previous_hash.writeTo(buf);
+        }
+        Transaction.writeKey(buf, miner);
+        buf.putFloat(fee);
+        buf.putLong(nonce);
+        buf.put(txs);
+        return buf.array();
+    }
+    
+    
+    /**
+     * Decode
+     * 
+     * Lee un bloque codificado con `encode()` a partir de la posición actual
+     * del buffer, que puede ser una vista sobre un segmento del registro de
+     * bloques.
+     * 
+     * @param buf
+     * @return block o null si no es válido
+     */
+    public static Block decode(ByteBuffer buf) {
+        try {
+            if (buf.get() != FORMAT_VERSION) return null;
+            long index = buf.getLong();
+            boolean hasPrevious = (buf.get() != 0);
+            Hash256 previousHash = Hash256.read(buf);
+            PublicKey miner = Transaction.readKey(buf);
+            float fee = buf.getFloat();
+            long nonce = buf.getLong();
+            ArrayList<Transaction> transactions =
+                Transaction.decodeAll(buf, Cutrecoin.MAX_BLOCK_TRANSACTIONS);
+            if (transactions == null) return null;
+            return new Block(index, transactions, hasPrevious ? previousHash : null,
+                miner, fee, nonce);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+    
+    
     /**
      * Get index
      * @return index
@@ -65,11 +167,60 @@ public class Block implements Serializable {
     }
     
     
+    /**
+     * Add transaction
+     * 
+     * Añade una transacción al bloque actualizando el árbol de Merkle de
+     * forma incremental.
+     * 
+     * @param transaction 
+     */
+    public void addTransaction(Transaction transaction) {
+        transactions.add(transaction);
+        getMerkleTree().add(transaction.getId());
+        midstate = null;
+        hash = calculateHash(nonce);
+    }
+    
+    
+    /**
+     * Get merkle tree
+     * @return merkleTree
+     */
+    private MerkleTree getMerkleTree() {
+        if (merkleTree == null) merkleTree = new MerkleTree(transactions);
+        return merkleTree;
+    }
+    
+    
+    /**
+     * Get merkle root
+     * @return merkleRoot
+     */
+    public Hash256 getMerkleRoot() {
+        return getMerkleTree().getRoot();
+    }
+    
+    
+    /**
+     * Get merkle proof
+     * 
+     * Prueba de pertenencia de la transacción en la posición indicada,
+     * verificable con `MerkleTree.verifyProof` frente a `getMerkleRoot()`.
+     * 
+     * @param index
+     * @return proof
+     */
+    public ArrayList<Hash256> getMerkleProof(int index) {
+        return getMerkleTree().getProof(index);
+    }
+    
+    
     /**
      * Get hash
      * @return hash
      */
-    public String getHash() {
+    public Hash256 getHash() {
         return hash;
     }
     
@@ -78,7 +229,7 @@ public class Block implements Serializable {
      * Get previous hash
      * @return previousHash
      */
-    public String getPreviousHash() {
+    public Hash256 getPreviousHash() {
         return previous_hash;
     }
     
@@ -92,6 +243,16 @@ public class Block implements Serializable {
     }
     
     
+    /**
+     * Get miner ID
+     * @return identificador de la dirección del minero
+     */
+    public int getMinerId() {
+        if (minerId == AddressRegistry.NONE) minerId = AddressRegistry.getId(miner);
+        return minerId;
+    }
+    
+    
     /**
      * Get fee
      * @return fee
@@ -113,12 +274,107 @@ public class Block implements Serializable {
     /**
      * Recalculate hash
      * 
-     * Calcula el atributo hash del bloque en función de su información
+     * Calcula el atributo hash del bloque en función de su información. Debe
+     * llamarse si se modifican las transacciones del bloque.
      */
     public void recalculateHash() {
-        String signature = index + transactions.toString() + nonce +
-            ((previous_hash == null) ? "null" : previous_hash) + miner + fee;
-        hash = Utils.sha256(signature);
+        merkleTree = null;
+        midstate = null;
+        hash = calculateHash(nonce);
+    }
+    
+    
+    /**
+     * Calculate hash
+     * 
+     * Calcula el hash que tendría el bloque con el nonce indicado sin
+     * modificar su estado, de forma que varios hilos puedan probar nonces
+     * distintos a la vez.
+     * 
+     * @param nonce
+     * @return hash
+     */
+    public Hash256 calculateHash(long nonce) {
+        return Hash256.of(newHasher().hash(nonce));
+    }
+    
+    
+    /**
+     * Get midstate
+     * 
+     * Devuelve el estado del SHA-256 tras absorber la parte constante de la
+     * cabecera (todo salvo el nonce).
+     * 
+     * @return midstate
+     */
+    private MessageDigest getMidstate() {
+        if (midstate == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                byte[] minerBytes = (miner == null) ? new byte[0] : miner.getEncoded();
+                ByteBuffer header = ByteBuffer.allocate(8 + Hash256.SIZE*2 + 4 +
+                    minerBytes.length + 4);
+                header.putLong(index);
+                if (previous_hash == null) {
+                    header.put(new byte[Hash256.SIZE]);
+                } else {
+                    previous_hash.writeTo(header);
+                }
+                getMerkleRoot().writeTo(header);
+                header.putInt(minerBytes.length);
+                header.put(minerBytes);
+                header.putFloat(fee);
+                md.update(header.array());
+                midstate = md;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return midstate;
+    }
+    
+    
+    /**
+     * New hasher
+     * 
+     * Crea un calculador de hashes con su propia copia de la cabecera para
+     * ser usado desde un único hilo.
+     * 
+     * @return hasher
+     */
+    Hasher newHasher() {
+        try {
+            return new Hasher((MessageDigest) getMidstate().clone());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    
+    /**
+     * Set nonce
+     * @param nonce 
+     */
+    void setNonce(long nonce) {
+        this.nonce = nonce;
+        hash = calculateHash(nonce);
+    }
+    
+    
+    /**
+     * Read object
+     * 
+     * El hash no se serializa: se recalcula al recibir el bloque para que no
+     * pueda falsearse.
+     * 
+     * @param in
+     * @throws IOException
+     * @throws ClassNotFoundException 
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        recalculateHash();
     }
     
     
@@ -128,8 +384,7 @@ public class Block implements Serializable {
      * Suma una unidad al nonce del bloque
      */
     public void incrementNonce() {
-        nonce++;
-        recalculateHash();
+        setNonce(nonce + 1);
     }
     
     
@@ -141,19 +396,80 @@ public class Block implements Serializable {
      * @return isValid
      */
     public boolean isValidHash() {
-        String validStr = String.format("%0" + Cutrecoin.DIFFICULTY + "d", 0);
-        String blockStr = getHash().substring(0, Cutrecoin.DIFFICULTY);
-        return validStr.equals(blockStr);
+        return getHash().hasLeadingZeroBits(Cutrecoin.DIFFICULTY);
     }
     
     
     /**
      * Mine
      * 
-     * Busca el `nonce` que cumpla la dificultad del hash del bloque.
+     * Busca el `nonce` que cumpla la dificultad del hash del bloque usando
+     * todos los núcleos disponibles.
      */
     public void mine() {
-        while (!isValidHash()) incrementNonce();
+        new Miner().mine(this);
+    }
+    
+    
+    /**
+     * Mine
+     * 
+     * Busca el `nonce` que cumpla la dificultad del hash del bloque
+     * repartiendo el trabajo entre el número de hilos indicado.
+     * 
+     * @param threads
+     */
+    public void mine(int threads) {
+        new Miner(threads).mine(this);
+    }
+    
+    
+    /**
+     * Hasher
+     * 
+     * Calcula hashes de la cabecera a partir de un midstate clonado. Reutiliza
+     * sus buffers, por lo que no es seguro compartirlo entre hilos.
+     */
+    static final class Hasher {
+        
+        private final MessageDigest prefix;
+        private final byte[] nonceBytes = new byte[8];
+        private final byte[] out = new byte[Hash256.SIZE];
+        
+        
+        /**
+         * Hasher
+         * @param prefix 
+         */
+        private Hasher(MessageDigest prefix) {
+            this.prefix = prefix;
+        }
+        
+        
+        /**
+         * Hash
+         * 
+         * Devuelve el hash de la cabecera con el nonce dado. El array devuelto
+         * se sobrescribe en la siguiente llamada.
+         * 
+         * @param nonce
+         * @return hash
+         */
+        byte[] hash(long nonce) {
+            for (int i=7; i>=0; i--) {
+                nonceBytes[i] = (byte) nonce;
+                nonce >>>= 8;
+            }
+            try {
+                MessageDigest md = (MessageDigest) prefix.clone();
+                md.update(nonceBytes);
+                md.digest(out, 0, out.length);
+                return out;
+            } catch (CloneNotSupportedException | DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
     }
     
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import tk.josemmo.BlockLog;
+
+/**
+ * Block store
+ * 
+ * Almacén de los bloques de la cadena. Los bloques se guardan en el registro
+ * de bloques (`BlockLog`) y solo se mantienen en memoria el último bloque y
+ * los últimos consultados; el resto se decodifican desde disco cuando se
+ * piden. La altura de cada bloque coincide con su número de registro.
+ * 
+ * Sin registro (instancias en memoria) se conservan todos los bloques.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+class BlockStore {
+    
+    private final BlockLog log;
+    private final AppendOnlyList<Block> memory;
+    private final Map<Integer, Block> cache;
+    private volatile Tip tip = new Tip(null, 0);
+    
+    
+    /**
+     * Block store
+     * @param log registro de bloques o null para guardarlos en memoria
+     * @param cacheSize número de bloques decodificados que se conservan
+     */
+    BlockStore(BlockLog log, final int cacheSize) {
+        this.log = log;
+        this.memory = (log == null) ? new AppendOnlyList<>() : null;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+    
+    
+    /**
+     * Is persistent
+     * @return si los bloques se guardan en un registro
+     */
+    boolean isPersistent() {
+        return log != null;
+    }
+    
+    
+    /**
+     * Get stored count
+     * @return número de bloques guardados en el registro
+     */
+    int getStoredCount() {
+        return (log == null) ? 0 : log.size();
+    }
+    
+    
+    /**
+     * Load
+     * 
+     * Decodifica un bloque del registro sin añadirlo a la cadena. Se usa al
+     * arrancar para reconstruir los índices.
+     * 
+     * @param height
+     * @return block o null si no se pudo leer
+     */
+    Block load(int height) {
+        try {
+            return Block.decode(log.read(height));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Restore
+     * 
+     * Hace visibles de golpe los primeros bloques del registro, cuyos índices
+     * se han cargado de disco.
+     * 
+     * @param last último bloque
+     * @param size número de bloques
+     */
+    void restore(Block last, int size) {
+        tip = new Tip(last, size);
+    }
+    
+    
+    /**
+     * Publish
+     * 
+     * Hace visible al final de la cadena un bloque ya escrito con `write()`
+     * (o que ya estaba en el registro al arrancar).
+     * 
+     * @param block 
+     */
+    void publish(Block block) {
+        tip = new Tip(block, tip.size + 1);
+    }
+    
+    
+    /**
+     * Truncate
+     * 
+     * Descarta del registro los bloques que no se han restaurado.
+     * 
+     * @throws IOException 
+     */
+    void truncate() throws IOException {
+        log.truncate(tip.size);
+    }
+    
+    
+    /**
+     * Write
+     * 
+     * Guarda el siguiente bloque de la cadena sin hacerlo visible todavía
+     * (ver `publish()`). Para que sea persistente hay que llamar después a
+     * `sync()`.
+     * 
+     * @param block
+     * @return success
+     */
+    boolean write(Block block) {
+        if (log == null) {
+            memory.add(block);
+        } else {
+            try {
+                log.append(block.encode());
+            } catch (IOException e) {
+                return false;
+            }
+            cache.put(tip.size, block);
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Sync
+     */
+    void sync() {
+        if (log == null) return;
+        try {
+            log.sync();
+        } catch (IOException e) {}
+    }
+    
+    
+    /**
+     * Get
+     * @param height
+     * @return block o null si no existe
+     */
+    Block get(int height) {
+        Tip t = tip;
+        if ((height < 0) || (height >= t.size)) return null;
+        if (log == null) return memory.get(height);
+        if (height == t.size-1) return t.block;
+        Block block = cache.get(height);
+        if (block == null) {
+            block = load(height);
+            if (block != null) cache.put(height, block);
+        }
+        return block;
+    }
+    
+    
+    /**
+     * Get last
+     * @return último bloque o null si la cadena está vacía
+     */
+    Block getLast() {
+        return tip.block;
+    }
+    
+    
+    /**
+     * Size
+     * @return número de bloques de la cadena
+     */
+    int size() {
+        return tip.size;
+    }
+    
+    
+    /**
+     * Tip
+     * 
+     * Último bloque y tamaño de la cadena, que se publican juntos para que un
+     * lector nunca vea uno sin el otro.
+     */
+    private static final class Tip {
+        
+        private final Block block;
+        private final int size;
+        
+        
+        /**
+         * Tip
+         * @param block
+         * @param size 
+         */
+        Tip(Block block, int size) {
+            this.block = block;
+            this.size = size;
+        }
+        
+    }
+    
+}
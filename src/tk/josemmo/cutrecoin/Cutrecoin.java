@@ -5,9 +5,21 @@
 
 package tk.josemmo.cutrecoin;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import tk.josemmo.BlockLog;
 import tk.josemmo.DataManager;
 
 /**
@@ -16,50 +28,349 @@ import tk.josemmo.DataManager;
  * Esta clase define un `blockchain` (cadena de bloques) que recibe el nombre
  * de Cutrecoin (CC).
  * 
+ * Todos los cambios de estado los aplica un único hilo escritor que consume
+ * una cola acotada de eventos (bloques y transacciones). Cuando llegan
+ * ráfagas, el escritor aplica de golpe todo lo que haya en la cola y guarda
+ * en disco una sola vez por lote. Las consultas (bloques, saldos,
+ * historial...) no toman ningún bloqueo: leen de estructuras concurrentes o
+ * de listas de solo-añadir que el escritor publica de forma segura.
+ * 
  * @author josemmo
  * @author carlos
  */
 public class Cutrecoin {
     
-    // Número de ceros por los que tiene que empezar el hash de un bloque
-    public static final int DIFFICULTY = 3;
-    // Algoritmo con el que se firmarán las transacciones
-    public static final String SIGNATURE_ALG = "SHA1WithRSA";
+    // Número de bits a cero por los que tiene que empezar el hash de un bloque
+    public static final int DIFFICULTY = 12;
+    // Esquema de firma de las nuevas direcciones
+    public static final SignatureScheme DEFAULT_SCHEME = SignatureScheme.ED25519;
     // Número de CC máximo que un minero puede exigir por bloque minado
     public static final float MAX_FEE = 10;
     // Puerto de conexiones para nodos de la red
     public static final int PORT = 10000;
     // Millisegundos de espera antes de dar una conexión por no accesible
     public static final int TIMEOUT = 150;
+    // Hilos dedicados a verificar firmas de transacciones
+    public static final int VERIFY_THREADS = Runtime.getRuntime().availableProcessors();
+    // Número máximo de firmas verificadas que se recuerdan
+    public static final int SIGNATURE_CACHE_SIZE = 100000;
+    // Número máximo de transacciones pendientes, en total y por emisor
+    public static final int MEMPOOL_SIZE = 10000;
+    public static final int MEMPOOL_SENDER_LIMIT = 100;
+    // Número máximo de bloques huérfanos y milisegundos que se conservan
+    public static final int ORPHAN_POOL_SIZE = 1000;
+    public static final long ORPHAN_MAX_AGE = 10*60*1000;
+    // Número máximo de transacciones por bloque
+    public static final int MAX_BLOCK_TRANSACTIONS = 1000;
+    // Capacidad de la cola de eventos del hilo escritor
+    public static final int EVENT_QUEUE_SIZE = 1024;
+    // Número de bloques decodificados que se mantienen en memoria
+    public static final int BLOCK_CACHE_SIZE = 256;
+    // Número de bloques nuevos tras los que se guardan los índices
+    public static final int CHECKPOINT_INTERVAL = 1000;
     
-    private ArrayList<Block> chain = new ArrayList<>();
-    private ArrayList<Transaction> pendingTransactions = new ArrayList<>();
-    private ArrayList<Block> candidateBlocks = new ArrayList<>();
+    private final ArrayBlockingQueue<Event> events = new ArrayBlockingQueue<>(EVENT_QUEUE_SIZE);
+    private final Thread writer = new Thread(this::runWriter, "chain-writer");
+    private final BlockStore chain;
+    private final Mempool mempool = new Mempool(MEMPOOL_SIZE, MEMPOOL_SENDER_LIMIT);
+    private final ConcurrentHashMap<Hash256, Long> blocksByHash = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Hash256, TxPointer> transactionIndex = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, AppendOnlyList<TxPointer>> history =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Float> balances = new ConcurrentHashMap<>();
+    private volatile float marketCap = 0;
+    private volatile PendingBalances pendingBalances = null;
+    private int checkpointHeight = 0;
+    private final OrphanPool orphans = new OrphanPool(ORPHAN_POOL_SIZE, ORPHAN_MAX_AGE);
+    private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong version = new AtomicLong(0);
+    private final SignatureCache signatureCache = new SignatureCache(SIGNATURE_CACHE_SIZE);
+    private final SignatureVerifier verifier =
+        new SignatureVerifier(VERIFY_THREADS, signatureCache);
     
     
     /**
      * Cutrecoin
      */
     public Cutrecoin() {
-        // Cargar blockchain a la clase
-        Object tmpChain = DataManager.readSerialized(DataManager.BLOCKCHAIN_PATH);
-        if (tmpChain != null) chain = (ArrayList<Block>) tmpChain;
+        // Abrir registro de bloques
+        // Si no se puede abrir (p. ej. un segmento comprimido dañado) no se
+        // arranca: seguir con una cadena vacía ocultaría el problema
+        BlockLog log;
+        try {
+            log = new BlockLog(DataManager.BLOCKS_PATH, BlockLog.SEGMENT_SIZE,
+                new KeyDictionary());
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo abrir el registro de bloques", e);
+        }
+        chain = new BlockStore(log, BLOCK_CACHE_SIZE);
+        
+        // Cargar índices guardados
+        // Solo se decodifica el último bloque que incluyen, para comprobar que
+        // coinciden con el registro
+        int stored = chain.getStoredCount();
+        if (stored > 0) loadCheckpoint(stored);
+        
+        // Validar y aplicar los bloques posteriores
+        // Se vuelve a validar cada bloque (firmas incluidas) y se descarta todo
+        // a partir del primero que no sea válido
+        for (int i=chain.size(); i<stored; i++) {
+            Block block = chain.load(i);
+            if ((block == null) || !isValidBlock(block)) break;
+            applyBlock(block);
+            chain.publish(block);
+        }
+        if (chain.size() < stored) {
+            try {
+                chain.truncate();
+            } catch (IOException e) {
+                throw new IllegalStateException("No se pudo truncar el registro de bloques", e);
+            }
+        }
+        
+        // Cadena guardada con el formato anterior
+        // Los bloques y las firmas han cambiado de formato, así que no se
+        // puede importar: en vez de arrancar desde cero sin avisar, se pide
+        // que se aparte el fichero antiguo
+        if ((stored == 0) && new File(DataManager.BLOCKCHAIN_PATH).exists()) {
+            throw new IllegalStateException("Existe una cadena con el formato " +
+                "anterior (" + DataManager.BLOCKCHAIN_PATH + ") que ya no es " +
+                "compatible; muévela o bórrala para empezar una cadena nueva");
+        }
+        saveCheckpointIfNeeded();
         
         // Cargar transacciones pendientes
-        Object tmpPending = DataManager.readSerialized(DataManager.PENDING_PATH);
+        byte[] tmpPending = DataManager.readBytes(DataManager.PENDING_PATH);
         if (tmpPending != null) {
-            pendingTransactions = (ArrayList<Transaction>) tmpPending;
+            ArrayList<Transaction> pending =
+                Transaction.decodeAll(ByteBuffer.wrap(tmpPending), MEMPOOL_SIZE);
+            if (pending != null) {
+                for (Transaction t : pending) admitPendingTransaction(t);
+            }
+        }
+        
+        // Arrancar hilo escritor
+        startWriter();
+    }
+    
+    
+    /**
+     * Cutrecoin
+     * 
+     * Crea una instancia en memoria a partir de una cadena ya construida, sin
+     * leer ni validar nada del disco. Pensado para las mediciones de
+     * rendimiento.
+     * 
+     * @param chain 
+     */
+    Cutrecoin(ArrayList<Block> chain) {
+        this.chain = new BlockStore(null, BLOCK_CACHE_SIZE);
+        for (Block block : chain) {
+            this.chain.write(block);
+            applyBlock(block);
+            this.chain.publish(block);
+        }
+        startWriter();
+    }
+    
+    
+    /**
+     * Start writer
+     */
+    private void startWriter() {
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    
+    /**
+     * Run writer
+     * 
+     * Bucle del hilo escritor: espera un evento, recoge además todos los que
+     * ya estén en cola, los aplica en orden y guarda y notifica una sola vez
+     * por lote. Los resultados se entregan después de guardar.
+     */
+    private void runWriter() {
+        ArrayList<Event> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(events.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            events.drainTo(batch);
+            
+            // Aplicar lote
+            boolean chainChanged = false;
+            boolean changed = false;
+            boolean[] results = new boolean[batch.size()];
+            for (int i=0; i<batch.size(); i++) {
+                Event e = batch.get(i);
+                try {
+                    results[i] = apply(e);
+                } catch (RuntimeException ex) {
+                    results[i] = false;
+                }
+                changed |= results[i];
+                chainChanged |= results[i] && (e.type != Event.TRANSACTION);
+            }
+            
+            // Guardar y notificar
+            // Los resultados se entregan aunque falle algo, para que nadie
+            // se quede esperando y el hilo siga vivo
+            try {
+                if (chainChanged) save();
+                if (changed) notifyChange();
+            } catch (RuntimeException ex) {
+                // Se vuelve a intentar guardar con el siguiente lote
+            } finally {
+                for (int i=0; i<batch.size(); i++) batch.get(i).result.complete(results[i]);
+                batch.clear();
+            }
+        }
+    }
+    
+    
+    /**
+     * Apply
+     * @param e
+     * @return success
+     */
+    private boolean apply(Event e) {
+        switch (e.type) {
+            case Event.BLOCK:
+                return applyBlockEvent((Block) e.item);
+            case Event.CANDIDATE_BLOCK:
+                return applyCandidateBlockEvent((Block) e.item);
+            default:
+                return admitPendingTransaction((Transaction) e.item);
         }
     }
     
     
+    /**
+     * Submit
+     * 
+     * Encola un evento para el hilo escritor y espera a que se aplique.
+     * 
+     * @param type
+     * @param item
+     * @return success
+     */
+    private boolean submit(int type, Object item) {
+        Event e = new Event(type, item);
+        try {
+            events.put(e);
+            return e.result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
+    
     
     /**
      * Save
+     * 
+     * Fuerza la escritura a disco de los bloques añadidos al registro y
+     * guarda las transacciones pendientes. Estas se reescriben enteras (de
+     * forma atómica), pero están acotadas por `MEMPOOL_SIZE`, así que el
+     * coste no crece con la cadena.
      */
     private void save() {
-        DataManager.saveSerialized(DataManager.BLOCKCHAIN_PATH, chain);
-        DataManager.saveSerialized(DataManager.PENDING_PATH, pendingTransactions);
+        chain.sync();
+        saveCheckpointIfNeeded();
+        DataManager.saveBytes(DataManager.PENDING_PATH,
+            Transaction.encodeAll(mempool.getTransactions()));
+    }
+    
+    
+    /**
+     * Load checkpoint
+     * 
+     * Carga los índices guardados si coinciden con el registro de bloques.
+     * 
+     * @param stored número de bloques del registro
+     */
+    private void loadCheckpoint(int stored) {
+        IndexCheckpoint checkpoint = IndexCheckpoint.read(DataManager.INDEX_PATH,
+            blocksByHash, transactionIndex, history, balances);
+        Block tip = null;
+        if ((checkpoint != null) && (checkpoint.getHeight() > 0) &&
+            (checkpoint.getHeight() <= stored)) {
+            tip = chain.load(checkpoint.getHeight() - 1);
+        }
+        if ((tip == null) || !tip.getHash().equals(checkpoint.getTip())) {
+            blocksByHash.clear();
+            transactionIndex.clear();
+            history.clear();
+            balances.clear();
+            return;
+        }
+        marketCap = checkpoint.getMarketCap();
+        checkpointHeight = checkpoint.getHeight();
+        chain.restore(tip, checkpointHeight);
+    }
+    
+    
+    /**
+     * Save checkpoint if needed
+     * 
+     * Guarda los índices cuando se han añadido `CHECKPOINT_INTERVAL` bloques
+     * desde la última vez. Solo desde el hilo escritor (o el constructor).
+     */
+    private void saveCheckpointIfNeeded() {
+        int height = chain.size();
+        if (!chain.isPersistent() || (height - checkpointHeight < CHECKPOINT_INTERVAL)) return;
+        try {
+            IndexCheckpoint.write(DataManager.INDEX_PATH, height,
+                chain.getLast().getHash(), marketCap, blocksByHash,
+                transactionIndex, history, balances);
+            checkpointHeight = height;
+        } catch (IOException e) {}
+    }
+    
+    
+    /**
+     * Add change listener
+     * 
+     * Registra una acción que se ejecutará cada vez que cambie el último
+     * bloque de la cadena o las transacciones pendientes. Se ejecuta en el
+     * hilo escritor, así que no debe llamar a los métodos que modifican la
+     * cadena.
+     * 
+     * @param listener 
+     */
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+    
+    
+    /**
+     * Get version
+     * 
+     * Contador que se incrementa con cada cambio de la cadena o de las
+     * transacciones pendientes.
+     * 
+     * @return version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+    
+    
+    /**
+     * Notify change
+     */
+    private void notifyChange() {
+        version.incrementAndGet();
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {}
+        }
     }
     
     
@@ -68,8 +379,7 @@ public class Cutrecoin {
      * @return block
      */
     public Block getLastBlock() {
-        if (chain.isEmpty()) return null;
-        return chain.get(chain.size()-1);
+        return chain.getLast();
     }
     
     
@@ -82,21 +392,138 @@ public class Cutrecoin {
      * @return success
      */
     public boolean addBlock(Block block) {
-        Block lastBlock = getLastBlock();
+        return submit(Event.BLOCK, block);
+    }
+    
+    
+    /**
+     * Apply block event
+     * @param block
+     * @return success
+     */
+    private boolean applyBlockEvent(Block block) {
+        if (!connectBlock(block)) return false;
+        connectOrphans(block);
+        return true;
+    }
+    
+    
+    /**
+     * Connect block
+     * 
+     * Valida y añade un bloque a la cadena, sin guardar ni notificar.
+     * 
+     * @param block
+     * @return success
+     */
+    private boolean connectBlock(Block block) {
+        if (!isValidBlock(block)) return false;
+        if (!chain.write(block)) return false;
         
-        // Validar integridad de la cadena
-        if (lastBlock == null) {
-            if (block.getPreviousHash() != null) return false;
-        } else if (!lastBlock.getHash().equals(block.getPreviousHash())) {
-            return false;
+        // Actualizar índices antes de publicar el nuevo último bloque, para
+        // que un lector que lo vea encuentre ya sus transacciones y saldos
+        applyBlock(block);
+        chain.publish(block);
+        mempool.removeAll(block.getTransactions());
+        return true;
+    }
+    
+    
+    /**
+     * Connect orphans
+     * 
+     * Añade a la cadena los bloques huérfanos que descienden del indicado.
+     * 
+     * @param parent 
+     */
+    private void connectOrphans(Block parent) {
+        ArrayDeque<Block> queue = new ArrayDeque<>();
+        queue.add(parent);
+        while (!queue.isEmpty()) {
+            for (Block child : orphans.removeChildren(queue.poll().getHash())) {
+                if (connectBlock(child)) queue.add(child);
+            }
         }
+    }
+    
+    
+    /**
+     * Apply block
+     * 
+     * Actualiza los índices con un bloque recién añadido a la cadena.
+     * 
+     * @param block 
+     */
+    private void applyBlock(Block block) {
+        blocksByHash.put(block.getHash(), block.getIndex());
         
-        // Validar índice correlativo
-        if (lastBlock == null) {
-            if (block.getIndex() != 0) return false;
-        } else if ((lastBlock.getIndex()+1) != block.getIndex()) {
-            return false;
+        // Posición de cada transacción e historial de cada dirección
+        ArrayList<Transaction> transactions = block.getTransactions();
+        for (int i=0; i<transactions.size(); i++) {
+            Transaction t = transactions.get(i);
+            TxPointer pointer = new TxPointer(block.getIndex(), i);
+            transactionIndex.put(t.getId(), pointer);
+            addToHistory(t.getFromId(), pointer);
+            if (t.getToId() != t.getFromId()) addToHistory(t.getToId(), pointer);
+        }
+        
+        // Guardar los saldos anteriores antes de tocarlos, para que los
+        // lectores no vean los del bloque hasta que se publique
+        HashMap<Integer, Float> previous = new HashMap<>();
+        for (Transaction t : transactions) {
+            previous.putIfAbsent(t.getFromId(), balances.get(t.getFromId()));
+            previous.putIfAbsent(t.getToId(), balances.get(t.getToId()));
         }
+        previous.putIfAbsent(block.getMinerId(), balances.get(block.getMinerId()));
+        pendingBalances = new PendingBalances(block.getIndex(), previous, marketCap);
+        
+        // Saldos (si origen y destino coinciden solo se descuenta, igual que
+        // se ha hecho siempre)
+        for (Transaction t : transactions) {
+            addToBalance(t.getFromId(), -t.getAmount());
+            if (t.getToId() != t.getFromId()) addToBalance(t.getToId(), t.getAmount());
+        }
+        addToBalance(block.getMinerId(), block.getFee());
+        marketCap += block.getFee();
+    }
+    
+    
+    /**
+     * Add to history
+     * @param address
+     * @param pointer 
+     */
+    private void addToHistory(int address, TxPointer pointer) {
+        AppendOnlyList<TxPointer> entries = history.get(address);
+        if (entries == null) {
+            entries = new AppendOnlyList<>();
+            history.put(address, entries);
+        }
+        entries.add(pointer);
+    }
+    
+    
+    /**
+     * Add to balance
+     * @param address
+     * @param amount 
+     */
+    private void addToBalance(int address, float amount) {
+        balances.merge(address, amount, Float::sum);
+    }
+    
+    
+    /**
+     * Is valid block
+     * 
+     * Comprueba si un bloque puede añadirse a continuación del último bloque
+     * de la cadena. Las firmas de sus transacciones se verifican en paralelo.
+     * 
+     * @param block
+     * @return isValid
+     */
+    private boolean isValidBlock(Block block) {
+        if (!isLinked(block)) return false;
         
         // Validar comisión del bloque
         float fee = block.getFee();
@@ -106,17 +533,44 @@ public class Cutrecoin {
         // Validar dificultad de bloque
         if (!block.isValidHash()) return false;
         
-        // Validar transacciones del bloque
+        // Validar que ninguna transacción está repetida
+        if (block.getTransactions().size() > MAX_BLOCK_TRANSACTIONS) return false;
+        HashSet<Hash256> ids = new HashSet<>();
         for (Transaction t : block.getTransactions()) {
-            if (!t.isValidSignature()) return false;
+            Hash256 id = t.getId();
+            if (transactionIndex.containsKey(id) || !ids.add(id)) return false;
         }
         
-        // Añadir bloque a la cadena
-        chain.add(block);
+        // Validar transacciones del bloque
+        return verifier.verifyAll(block.getTransactions());
+    }
+    
+    
+    /**
+     * Is linked
+     * 
+     * Comprueba si un bloque va justo a continuación del último bloque de la
+     * cadena.
+     * 
+     * @param block
+     * @return isLinked
+     */
+    private boolean isLinked(Block block) {
+        Block lastBlock = getLastBlock();
         
-        // Guardar en disco
-        save();
+        // Validar integridad de la cadena
+        if (lastBlock == null) {
+            if (block.getPreviousHash() != null) return false;
+        } else if (!lastBlock.getHash().equals(block.getPreviousHash())) {
+            return false;
+        }
         
+        // Validar índice correlativo
+        if (lastBlock == null) {
+            if (block.getIndex() != 0) return false;
+        } else if ((lastBlock.getIndex()+1) != block.getIndex()) {
+            return false;
+        }
         return true;
     }
     
@@ -134,23 +588,27 @@ public class Cutrecoin {
             (lastBlock != null) &&
             (lastBlock.getIndex() > block.getIndex())
         ) return false;
+        if (blocksByHash.containsKey(block.getHash())) return false;
         
-        // Añadir bloque a la cola
-        for (Block b : candidateBlocks) {
-            if (b.getHash().equals(block.getHash())) return true;
-        }
-        candidateBlocks.add(block);
-        
-        // Procesar cola
-        boolean finished;
-        do {
-            finished = true;
-            for (Block b : candidateBlocks) {
-                boolean success = addBlock(b);
-                if (success) finished = false;
-            }
-        } while (!finished);
-        
+        return submit(Event.CANDIDATE_BLOCK, block);
+    }
+    
+    
+    /**
+     * Apply candidate block event
+     * 
+     * Añade el bloque a la cadena o, si falta su bloque anterior, lo deja a
+     * la espera.
+     * 
+     * @param block
+     * @return success
+     */
+    private boolean applyCandidateBlockEvent(Block block) {
+        if (orphans.contains(block.getHash())) return true;
+        if (applyBlockEvent(block)) return true;
+        Hash256 prevHash = block.getPreviousHash();
+        if ((prevHash == null) || blocksByHash.containsKey(prevHash)) return false;
+        orphans.add(block);
         return true;
     }
     
@@ -158,37 +616,24 @@ public class Cutrecoin {
     /**
      * Get balance
      * 
-     * Dada una clave pública, devuelve su saldo actual
+     * Dada una clave pública, devuelve su saldo actual según los bloques ya
+     * publicados.
      * 
      * @param key
      * @return balance
      */
     public float getBalance(PublicKey key) {
-        String targetAddr = (key == null) ? null : Utils.keyToBase64(key);
-        float balance = 0;
-        for (Block block : chain) {
-            // Añadir saldo de transacciones
-            if (targetAddr != null) {
-                for (Transaction transaction : block.getTransactions()) {
-                    String fromAddr = Utils.keyToBase64(transaction.getFrom());
-                    String toAddr = Utils.keyToBase64(transaction.getTo());
-                    if (targetAddr.equals(fromAddr)) {
-                        balance -= transaction.getAmount();
-                    } else if (targetAddr.equals(toAddr)) {
-                        balance += transaction.getAmount();
-                    }
-                }
-            }
-            
-            // Añadir saldo de comisiones
-            if (targetAddr == null) {
-                balance += block.getFee();
-            } else {
-                String minerAddr = Utils.keyToBase64(block.getMiner());
-                if (targetAddr.equals(minerAddr)) balance += block.getFee();
-            }
+        if (key == null) return getMarketCap();
+        int address = AddressRegistry.getId(key);
+        Float balance = balances.get(address);
+        
+        // Si el bloque que la ha cambiado aún no se ve, saldo anterior
+        PendingBalances pending = pendingBalances;
+        if ((pending != null) && (pending.height >= chain.size()) &&
+            pending.previous.containsKey(address)) {
+            balance = pending.previous.get(address);
         }
-        return balance;
+        return (balance == null) ? 0 : balance;
     }
     
     
@@ -200,7 +645,10 @@ public class Cutrecoin {
      * @return 
      */
     public float getMarketCap() {
-        return getBalance(null);
+        float res = marketCap;
+        PendingBalances pending = pendingBalances;
+        if ((pending != null) && (pending.height >= chain.size())) res = pending.marketCap;
+        return res;
     }
     
     
@@ -209,11 +657,21 @@ public class Cutrecoin {
      * @param hash
      * @return block
      */
-    public Block getBlock(String hash) {
-        for (Block block : chain) {
-            if (block.getHash().equals(hash)) return block;
-        }
-        return null;
+    public Block getBlock(Hash256 hash) {
+        if (hash == null) return null;
+        Long index = blocksByHash.get(hash);
+        return (index == null) ? null : getBlock(index);
+    }
+    
+    
+    /**
+     * Get block
+     * @param index altura del bloque en la cadena
+     * @return block
+     */
+    public Block getBlock(long index) {
+        if ((index < 0) || (index >= chain.size())) return null;
+        return chain.get((int) index);
     }
     
     
@@ -226,21 +684,61 @@ public class Cutrecoin {
      * @return block
      */
     public Block getBlockFromTransaction(Transaction t) {
-        for (Block block : chain) {
-            for (Transaction t2 : block.getTransactions()) {
-                if (t.equals(t2)) return block;
-            }
-        }
-        return null;
+        TxPointer pointer = getTransactionPointer(t.getId());
+        return (pointer == null) ? null : getBlock(pointer.getBlockIndex());
+    }
+    
+    
+    /**
+     * Get transaction pointer
+     * 
+     * Devuelve la posición en la cadena de una transacción o null si no se
+     * ha incluido en ningún bloque.
+     * 
+     * @param id
+     * @return pointer
+     */
+    public TxPointer getTransactionPointer(Hash256 id) {
+        TxPointer pointer = transactionIndex.get(id);
+        if ((pointer == null) || (pointer.getBlockIndex() >= chain.size())) return null;
+        return pointer;
+    }
+    
+    
+    /**
+     * Get signature cache
+     * @return signatureCache
+     */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
     }
     
     
     /**
      * Get pending transactions
-     * @return pendingTransactions
+     * @return copia de las transacciones pendientes por orden de prioridad
      */
     public ArrayList<Transaction> getPendingTransactions() {
-        return pendingTransactions;
+        return mempool.getTransactions();
+    }
+    
+    
+    /**
+     * Get pending transactions
+     * @param limit
+     * @return copia de las `limit` transacciones pendientes más prioritarias
+     */
+    public ArrayList<Transaction> getPendingTransactions(int limit) {
+        return mempool.getTransactions(limit);
+    }
+    
+    
+    /**
+     * Get pending transaction count
+     * @return pendingCount
+     */
+    public int getPendingTransactionCount() {
+        return mempool.size();
     }
     
     
@@ -250,19 +748,26 @@ public class Cutrecoin {
      * @return success
      */
     public boolean addPendingTransaction(Transaction transaction) {
-        // Comprobar que la transacción es válida
-        if (transaction.isValidSignature()) return false;
-        
-        // Buscar si ya existe en la cola
-        for (Transaction t2 : pendingTransactions) {
-            if (transaction.equals(t2)) return false;
-        }
+        return submit(Event.TRANSACTION, transaction);
+    }
+    
+    
+    /**
+     * Admit pending transaction
+     * @param transaction
+     * @return success
+     */
+    private boolean admitPendingTransaction(Transaction transaction) {
+        // Buscar si ya existe en la cola o en algún bloque
+        if (mempool.contains(transaction.getId())) return false;
+        if (transactionIndex.containsKey(transaction.getId())) return false;
         
-        // Buscar si la transacción ya existe en algún bloque
-        if (getBlockFromTransaction(transaction) != null) return false;
+        // Comprobar que la transacción es válida
+        if (!signatureCache.isValidSignature(transaction)) return false;
         
         // Añadir transacción a la cola
-        pendingTransactions.add(transaction);
+        if (!mempool.add(transaction)) return false;
+        signatureCache.add(transaction);
         return true;
     }
     
@@ -270,22 +775,125 @@ public class Cutrecoin {
     /**
      * Get custom transactions
      * @param key
-     * @return 
+     * @return transacciones de la dirección, de la más nueva a la más antigua
      */
     public ArrayList<Transaction> getCustomTransactions(PublicKey key) {
-        String targetAddr = Utils.keyToBase64(key);
-        ArrayList<Transaction> queue = new ArrayList<>();
-        for (Block block : chain) {
-            for (Transaction t : block.getTransactions()) {
-                String fromAddr = Utils.keyToBase64(t.getFrom());
-                String toAddr = Utils.keyToBase64(t.getTo());
-                if (fromAddr.equals(targetAddr) || toAddr.equals(targetAddr)) {
-                    queue.add(t);
-                }
-            }
+        return getCustomTransactions(key, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+    
+    
+    /**
+     * Get custom transactions
+     * 
+     * Devuelve una página del historial de una dirección, de la transacción
+     * más nueva a la más antigua. El cursor es la posición en el historial
+     * (ver `getCustomTransactionCount`) a partir de la cual se empieza a
+     * leer hacia atrás, sin incluirla; la siguiente página empieza en
+     * `before - resultado.size()`. Las posiciones no cambian al crecer la
+     * cadena.
+     * 
+     * @param key
+     * @param before
+     * @param limit
+     * @return transactions
+     */
+    public ArrayList<Transaction> getCustomTransactions(PublicKey key, int before,
+                                                        int limit) {
+        ArrayList<Transaction> page = new ArrayList<>();
+        AppendOnlyList<TxPointer> entries = history.get(AddressRegistry.getId(key));
+        if (entries == null) return page;
+        for (int i=Math.min(before, getVisibleCount(entries))-1; (i>=0) && (page.size()<limit); i--) {
+            TxPointer pointer = entries.get(i);
+            page.add(getBlock(pointer.getBlockIndex()).getTransactions()
+                .get(pointer.getPosition()));
         }
-        Collections.reverse(queue);
-        return queue;
+        return page;
+    }
+    
+    
+    /**
+     * Get custom transaction count
+     * @param key
+     * @return número de transacciones de la dirección
+     */
+    public int getCustomTransactionCount(PublicKey key) {
+        AppendOnlyList<TxPointer> entries = history.get(AddressRegistry.getId(key));
+        return (entries == null) ? 0 : getVisibleCount(entries);
+    }
+    
+    
+    /**
+     * Get visible count
+     * 
+     * Los índices se actualizan antes de publicar el bloque, así que el
+     * final del historial puede apuntar a un bloque que aún no es visible.
+     * 
+     * @param entries
+     * @return número de entradas cuyos bloques ya están en la cadena
+     */
+    private int getVisibleCount(AppendOnlyList<TxPointer> entries) {
+        long height = chain.size();
+        int count = entries.size();
+        while ((count > 0) && (entries.get(count-1).getBlockIndex() >= height)) count--;
+        return count;
+    }
+    
+    
+    /**
+     * Event
+     * 
+     * Cambio de estado pendiente de aplicar por el hilo escritor.
+     */
+    private static class Event {
+        
+        static final int BLOCK = 0;
+        static final int CANDIDATE_BLOCK = 1;
+        static final int TRANSACTION = 2;
+        
+        private final int type;
+        private final Object item;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        
+        
+        /**
+         * Event
+         * @param type
+         * @param item 
+         */
+        Event(int type, Object item) {
+            this.type = type;
+            this.item = item;
+        }
+        
+    }
+    
+    
+    /**
+     * Pending balances
+     * 
+     * Saldos y tapa de mercado de antes del bloque que se está aplicando.
+     * Mientras ese bloque no se publica, los lectores usan estos valores en
+     * vez de los que ya incluyen el bloque.
+     */
+    private static class PendingBalances {
+        
+        private final long height;
+        private final HashMap<Integer, Float> previous;
+        private final float marketCap;
+        
+        
+        /**
+         * Pending balances
+         * @param height altura del bloque que se está aplicando
+         * @param previous saldo anterior (o null) de cada dirección que cambia
+         * @param marketCap 
+         */
+        PendingBalances(long height, HashMap<Integer, Float> previous, float marketCap) {
+            this.height = height;
+            this.previous = previous;
+            this.marketCap = marketCap;
+        }
+        
     }
     
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Hash 256
+ * 
+ * Hash SHA-256 inmutable guardado como cuatro `long` en lugar de como String
+ * hexadecimal. La representación en hexadecimal solo se genera al mostrarlo.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public final class Hash256 implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public static final int SIZE = 32;
+    
+    private final long a;
+    private final long b;
+    private final long c;
+    private final long d;
+    
+    
+    /**
+     * Hash 256
+     * @param a
+     * @param b
+     * @param c
+     * @param d 
+     */
+    private Hash256(long a, long b, long c, long d) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+    
+    
+    /**
+     * Of
+     * @param bytes 32 bytes
+     * @return hash
+     */
+    public static Hash256 of(byte[] bytes) {
+        if (bytes.length != SIZE) {
+            throw new IllegalArgumentException("Se esperaban " + SIZE + " bytes");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        return new Hash256(buf.getLong(), buf.getLong(), buf.getLong(),
+            buf.getLong());
+    }
+    
+    
+    /**
+     * Read
+     * 
+     * Lee un hash de los siguientes 32 bytes del buffer.
+     * 
+     * @param buf
+     * @return hash
+     */
+    public static Hash256 read(ByteBuffer buf) {
+        return new Hash256(buf.getLong(), buf.getLong(), buf.getLong(),
+            buf.getLong());
+    }
+    
+    
+    /**
+     * From hex
+     * @param hex
+     * @return hash o null si no es válido
+     */
+    public static Hash256 fromHex(String hex) {
+        if ((hex == null) || (hex.length() != SIZE*2)) return null;
+        for (int i=0; i<hex.length(); i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0) return null;
+        }
+        return of(Utils.hexToBytes(hex));
+    }
+    
+    
+    /**
+     * Write to
+     * @param buf 
+     */
+    public void writeTo(ByteBuffer buf) {
+        buf.putLong(a).putLong(b).putLong(c).putLong(d);
+    }
+    
+    
+    /**
+     * To bytes
+     * @return bytes
+     */
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        writeTo(buf);
+        return buf.array();
+    }
+    
+    
+    /**
+     * Leading zero bits
+     * @return bits
+     */
+    public int leadingZeroBits() {
+        if (a != 0) return Long.numberOfLeadingZeros(a);
+        if (b != 0) return 64 + Long.numberOfLeadingZeros(b);
+        if (c != 0) return 128 + Long.numberOfLeadingZeros(c);
+        return 192 + Long.numberOfLeadingZeros(d);
+    }
+    
+    
+    /**
+     * Has leading zero bits
+     * @param bits
+     * @return hasBits
+     */
+    public boolean hasLeadingZeroBits(int bits) {
+        return leadingZeroBits() >= bits;
+    }
+    
+    
+    /**
+     * Has leading zero bits
+     * 
+     * Comprueba la dificultad directamente sobre un hash en binario, sin
+     * necesidad de crear un objeto.
+     * 
+     * @param hash
+     * @param bits
+     * @return hasBits
+     */
+    public static boolean hasLeadingZeroBits(byte[] hash, int bits) {
+        int i = 0;
+        for (; bits >= 8; bits -= 8) {
+            if (hash[i++] != 0) return false;
+        }
+        return (bits == 0) || ((hash[i] & 0xff) >>> (8 - bits)) == 0;
+    }
+    
+    
+    /**
+     * Equals
+     * @param o
+     * @return isEqual
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Hash256)) return false;
+        Hash256 h = (Hash256) o;
+        return (a == h.a) && (b == h.b) && (c == h.c) && (d == h.d);
+    }
+    
+    
+    /**
+     * Hash code
+     * 
+     * Los bits de un SHA-256 ya están uniformemente distribuidos, así que
+     * basta con tomar parte de ellos.
+     * 
+     * @return hashCode
+     */
+    @Override
+    public int hashCode() {
+        return (int) (d ^ (d >>> 32));
+    }
+    
+    
+    /**
+     * To string
+     * @return hex
+     */
+    @Override
+    public String toString() {
+        return Utils.toHex(toBytes());
+    }
+    
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Index checkpoint
+ * 
+ * Copia en disco de los índices de la cadena hasta una altura, para no tener
+ * que decodificar todos los bloques al arrancar. Formato:
+ *   versión         1 byte
+ *   altura          4 bytes (número de bloques incluidos)
+ *   último hash     32 bytes
+ *   tapa de mercado 4 bytes (float)
+ *   bloques         hash (32 bytes) de cada altura
+ *   transacciones   número (4 bytes) + ID, altura (8 bytes) y posición
+ *                   (4 bytes) de cada una, en orden de la cadena
+ *   direcciones     número (4 bytes) + clave (como en `Transaction`), saldo
+ *                   (4 bytes) e historial (número + posición de cada
+ *                   transacción en la lista anterior) de cada una
+ *   CRC32           8 bytes (de todo lo anterior)
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+final class IndexCheckpoint {
+    
+    // Versión del formato
+    public static final byte FORMAT_VERSION = 1;
+    
+    private final int height;
+    private final Hash256 tip;
+    private final float marketCap;
+    
+    
+    /**
+     * Index checkpoint
+     * @param height
+     * @param tip
+     * @param marketCap 
+     */
+    private IndexCheckpoint(int height, Hash256 tip, float marketCap) {
+        this.height = height;
+        this.tip = tip;
+        this.marketCap = marketCap;
+    }
+    
+    
+    /**
+     * Write
+     * 
+     * Guarda los índices en un fichero temporal que se renombra al terminar.
+     * Debe llamarse desde el hilo escritor para que los índices no cambien
+     * mientras se recorren.
+     * 
+     * @param path
+     * @param height
+     * @param tip
+     * @param marketCap
+     * @param blocksByHash
+     * @param transactionIndex
+     * @param history
+     * @param balances
+     * @throws IOException 
+     */
+    static void write(String path, int height, Hash256 tip, float marketCap,
+                      Map<Hash256, Long> blocksByHash,
+                      Map<Hash256, TxPointer> transactionIndex,
+                      Map<Integer, AppendOnlyList<TxPointer>> history,
+                      Map<Integer, Float> balances) throws IOException {
+        File tmp = new File(path + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(fileOut, crc), 64*1024));
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(height);
+            writeHash(out, tip);
+            out.writeFloat(marketCap);
+            
+            // Bloques por altura
+            Hash256[] hashes = new Hash256[height];
+            for (Map.Entry<Hash256, Long> e : blocksByHash.entrySet()) {
+                if (e.getValue() < height) hashes[e.getValue().intValue()] = e.getKey();
+            }
+            for (Hash256 hash : hashes) {
+                if (hash == null) throw new IOException("Falta un bloque en el índice");
+                writeHash(out, hash);
+            }
+            
+            // Transacciones en orden de la cadena
+            ArrayList<Map.Entry<Hash256, TxPointer>> txs = new ArrayList<>();
+            for (Map.Entry<Hash256, TxPointer> e : transactionIndex.entrySet()) {
+                if (e.getValue().getBlockIndex() < height) txs.add(e);
+            }
+            txs.sort((a, b) -> {
+                TxPointer pa = a.getValue();
+                TxPointer pb = b.getValue();
+                int cmp = Long.compare(pa.getBlockIndex(), pb.getBlockIndex());
+                return (cmp != 0) ? cmp : Integer.compare(pa.getPosition(), pb.getPosition());
+            });
+            IdentityHashMap<TxPointer, Integer> ordinals = new IdentityHashMap<>();
+            out.writeInt(txs.size());
+            for (Map.Entry<Hash256, TxPointer> e : txs) {
+                TxPointer pointer = e.getValue();
+                ordinals.put(pointer, ordinals.size());
+                writeHash(out, e.getKey());
+                out.writeLong(pointer.getBlockIndex());
+                out.writeInt(pointer.getPosition());
+            }
+            
+            // Saldo e historial de cada dirección
+            HashSet<Integer> addresses = new HashSet<>(balances.keySet());
+            addresses.addAll(history.keySet());
+            out.writeInt(addresses.size());
+            for (int address : addresses) {
+                PublicKey key = AddressRegistry.getKey(address);
+                SignatureScheme s = SignatureScheme.fromKey(key);
+                if (s == null) throw new IOException("Dirección desconocida");
+                byte[] encoded = key.getEncoded();
+                out.writeByte(s.getId());
+                out.writeShort(encoded.length);
+                out.write(encoded);
+                Float balance = balances.get(address);
+                out.writeFloat((balance == null) ? 0 : balance);
+                
+                AppendOnlyList<TxPointer> entries = history.get(address);
+                int count = (entries == null) ? 0 : entries.size();
+                while ((count > 0) && (entries.get(count-1).getBlockIndex() >= height)) count--;
+                out.writeInt(count);
+                for (int i=0; i<count; i++) {
+                    Integer ordinal = ordinals.get(entries.get(i));
+                    if (ordinal == null) throw new IOException("Historial inconsistente");
+                    out.writeInt(ordinal);
+                }
+            }
+            out.flush();
+            
+            // Suma de comprobación
+            fileOut.write(ByteBuffer.allocate(8).putLong(crc.getValue()).array());
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), Paths.get(path), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    
+    /**
+     * Write hash
+     * @param out
+     * @param hash
+     * @throws IOException 
+     */
+    private static void writeHash(DataOutputStream out, Hash256 hash) throws IOException {
+        out.write(hash.toBytes());
+    }
+    
+    
+    /**
+     * Read
+     * 
+     * Carga los índices guardados en los mapas indicados, que deben estar
+     * vacíos. Si el fichero no es válido devuelve null y los mapas pueden
+     * quedar a medias.
+     * 
+     * @param path
+     * @param blocksByHash
+     * @param transactionIndex
+     * @param history
+     * @param balances
+     * @return checkpoint o null si no existe o no es válido
+     */
+    static IndexCheckpoint read(String path, Map<Hash256, Long> blocksByHash,
+                                Map<Hash256, TxPointer> transactionIndex,
+                                Map<Integer, AppendOnlyList<TxPointer>> history,
+                                Map<Integer, Float> balances) {
+        try {
+            byte[] data = Files.readAllBytes(Paths.get(path));
+            if (data.length < 8) return null;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, data.length - 8);
+            if (ByteBuffer.wrap(data, data.length - 8, 8).getLong() != crc.getValue()) {
+                return null;
+            }
+            
+            if (buf.get() != FORMAT_VERSION) return null;
+            int height = buf.getInt();
+            Hash256 tip = Hash256.read(buf);
+            float marketCap = buf.getFloat();
+            
+            // Bloques por altura
+            for (int i=0; i<height; i++) blocksByHash.put(Hash256.read(buf), (long) i);
+            
+            // Transacciones
+            TxPointer[] pointers = new TxPointer[buf.getInt()];
+            for (int i=0; i<pointers.length; i++) {
+                Hash256 id = Hash256.read(buf);
+                pointers[i] = new TxPointer(buf.getLong(), buf.getInt());
+                transactionIndex.put(id, pointers[i]);
+            }
+            
+            // Saldo e historial de cada dirección
+            int addressCount = buf.getInt();
+            for (int i=0; i<addressCount; i++) {
+                PublicKey key = Transaction.readKey(buf);
+                if (key == null) return null;
+                int address = AddressRegistry.getId(key);
+                balances.put(address, buf.getFloat());
+                int count = buf.getInt();
+                if (count == 0) continue;
+                AppendOnlyList<TxPointer> entries = new AppendOnlyList<>();
+                for (int j=0; j<count; j++) entries.add(pointers[buf.getInt()]);
+                history.put(address, entries);
+            }
+            if (buf.hasRemaining()) return null;
+            return new IndexCheckpoint(height, tip, marketCap);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Get height
+     * @return número de bloques incluidos
+     */
+    int getHeight() {
+        return height;
+    }
+    
+    
+    /**
+     * Get tip
+     * @return hash del último bloque incluido
+     */
+    Hash256 getTip() {
+        return tip;
+    }
+    
+    
+    /**
+     * Get market cap
+     * @return marketCap
+     */
+    float getMarketCap() {
+        return marketCap;
+    }
+    
+}
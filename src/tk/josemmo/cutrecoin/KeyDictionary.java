@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import tk.josemmo.BlockLog;
+
+/**
+ * Key dictionary
+ * 
+ * Transformación de los segmentos del registro de bloques que sustituye cada
+ * clave pública repetida por una referencia a su primera aparición dentro del
+ * segmento. Las claves se reconocen por cómo las escribe `Transaction`:
+ * esquema (1 byte) + longitud (2 bytes) + clave X.509, cuya cabecera DER debe
+ * cubrir exactamente esa longitud.
+ * 
+ * El resultado es una secuencia de:
+ *   longitud        varint (bytes copiados tal cual a continuación)
+ *   literal         `longitud` bytes
+ *   referencia      varint: 0 fin, n clave n-1 ya vista, o número de claves
+ *                   vistas + 1 si la clave es nueva y va a continuación
+ * 
+ * Si algo que no es una clave tiene su misma forma también se trata como
+ * clave, así que la transformación siempre es reversible.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+final class KeyDictionary implements BlockLog.SegmentCodec {
+    
+    // Tamaño mínimo de una clave para que merezca la pena referenciarla
+    private static final int MIN_KEY_SIZE = 16;
+    private static final boolean[] SCHEMES = new boolean[256];
+    
+    static {
+        for (SignatureScheme s : SignatureScheme.values()) {
+            SCHEMES[s.getId() & 0xff] = true;
+        }
+    }
+    
+    
+    /**
+     * Pack
+     * @param segment 
+     * @return contenido transformado
+     */
+    @Override
+    public byte[] pack(byte[] segment) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(segment.length / 2);
+        HashMap<ByteBuffer, Integer> keys = new HashMap<>();
+        int literalStart = 0;
+        int pos = 0;
+        while (pos < segment.length) {
+            int keyLength = keyLengthAt(segment, pos, segment.length);
+            if (keyLength == 0) {
+                pos++;
+                continue;
+            }
+            
+            // Literal pendiente seguido de la clave
+            writeVarint(out, pos - literalStart);
+            out.write(segment, literalStart, pos - literalStart);
+            ByteBuffer key = ByteBuffer.wrap(segment, pos, keyLength).slice();
+            Integer ref = keys.get(key);
+            if (ref == null) {
+                writeVarint(out, keys.size() + 1);
+                out.write(segment, pos, keyLength);
+                keys.put(key, keys.size());
+            } else {
+                writeVarint(out, ref + 1);
+            }
+            pos += keyLength;
+            literalStart = pos;
+        }
+        writeVarint(out, segment.length - literalStart);
+        out.write(segment, literalStart, segment.length - literalStart);
+        writeVarint(out, 0);
+        return out.toByteArray();
+    }
+    
+    
+    /**
+     * Unpack
+     * @param packed
+     * @param length
+     * @return contenido original o null si no es válido
+     */
+    @Override
+    public byte[] unpack(byte[] packed, int length) {
+        byte[] res = new byte[length];
+        ArrayList<int[]> keys = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(packed);
+        int pos = 0;
+        try {
+            while (true) {
+                int literal = readVarint(in);
+                if ((literal < 0) || (literal > length - pos)) return null;
+                in.get(res, pos, literal);
+                pos += literal;
+                
+                int ref = readVarint(in);
+                if (ref == 0) break;
+                int[] key;
+                if (ref == keys.size() + 1) {
+                    int keyLength = keyLengthAt(packed, in.position(), packed.length);
+                    if (keyLength == 0) return null;
+                    key = new int[] {in.position(), keyLength};
+                    keys.add(key);
+                    in.position(in.position() + keyLength);
+                } else if ((ref > 0) && (ref <= keys.size())) {
+                    key = keys.get(ref - 1);
+                } else {
+                    return null;
+                }
+                if (key[1] > length - pos) return null;
+                System.arraycopy(packed, key[0], res, pos, key[1]);
+                pos += key[1];
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if ((pos != length) || in.hasRemaining()) return null;
+        return res;
+    }
+    
+    
+    /**
+     * Key length at
+     * @param data
+     * @param pos
+     * @param end
+     * @return longitud de la clave que empieza en `pos` o 0 si no hay ninguna
+     */
+    private static int keyLengthAt(byte[] data, int pos, int end) {
+        if ((end - pos < 3 + MIN_KEY_SIZE) || !SCHEMES[data[pos] & 0xff]) return 0;
+        int length = ((data[pos+1] & 0xff) << 8) | (data[pos+2] & 0xff);
+        if ((length < MIN_KEY_SIZE) || (length > Transaction.MAX_KEY_SIZE)) return 0;
+        if (length > end - pos - 3) return 0;
+        
+        // SEQUENCE de X.509 cuya longitud DER llega justo al final de la clave
+        int der = pos + 3;
+        if (data[der] != 0x30) return 0;
+        int lengthByte = data[der+1] & 0xff;
+        int derLength;
+        if (lengthByte < 0x80) {
+            derLength = 2 + lengthByte;
+        } else if (lengthByte == 0x81) {
+            derLength = 3 + (data[der+2] & 0xff);
+        } else if (lengthByte == 0x82) {
+            derLength = 4 + (((data[der+2] & 0xff) << 8) | (data[der+3] & 0xff));
+        } else {
+            return 0;
+        }
+        return (derLength == length) ? 3 + length : 0;
+    }
+    
+    
+    /**
+     * Write varint
+     * @param out
+     * @param value
+     */
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    
+    /**
+     * Read varint
+     * @param in
+     * @return value o -1 si no es válido
+     */
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift=0; shift<32; shift+=7) {
+            int b = in.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+    
+}
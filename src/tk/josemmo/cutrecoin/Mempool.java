@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Mempool
+ * 
+ * Conjunto acotado de transacciones pendientes de incluir en un bloque,
+ * indexado por ID y agrupado por dirección de origen. Las transacciones no
+ * tienen comisión, así que la prioridad es el orden de llegada: las más
+ * antiguas entran antes en los bloques. Cuando se llena se rechazan las
+ * nuevas, que son las de menor prioridad, en lugar de descartar las que
+ * están a punto de minarse. Cada dirección tiene además un máximo de transacciones
+ * pendientes para que un único emisor no pueda llenarlo.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class Mempool {
+    
+    private final int maxSize;
+    private final int maxPerSender;
+    private final LinkedHashMap<Hash256, Transaction> transactions = new LinkedHashMap<>();
+    private final HashMap<Integer, LinkedHashSet<Hash256>> bySender = new HashMap<>();
+    
+    
+    /**
+     * Mempool
+     * @param maxSize
+     * @param maxPerSender 
+     */
+    public Mempool(int maxSize, int maxPerSender) {
+        this.maxSize = maxSize;
+        this.maxPerSender = maxPerSender;
+    }
+    
+    
+    /**
+     * Add
+     * 
+     * Añade una transacción (ya validada) si queda sitio.
+     * 
+     * @param t
+     * @return success
+     */
+    public synchronized boolean add(Transaction t) {
+        Hash256 id = t.getId();
+        if (transactions.containsKey(id)) return false;
+        
+        // Limitar transacciones por emisor
+        LinkedHashSet<Hash256> senderIds = bySender.get(t.getFromId());
+        if ((senderIds != null) && (senderIds.size() >= maxPerSender)) return false;
+        
+        // Rechazar si está lleno
+        if (transactions.size() >= maxSize) return false;
+        
+        // Añadir transacción
+        transactions.put(id, t);
+        if (senderIds == null) {
+            senderIds = new LinkedHashSet<>();
+            bySender.put(t.getFromId(), senderIds);
+        }
+        senderIds.add(id);
+        return true;
+    }
+    
+    
+    /**
+     * Remove all
+     * 
+     * Quita de golpe las transacciones indicadas, normalmente las de un
+     * bloque recién añadido a la cadena.
+     * 
+     * @param toRemove
+     * @return número de transacciones quitadas
+     */
+    public synchronized int removeAll(Collection<Transaction> toRemove) {
+        int removed = 0;
+        for (Transaction t : toRemove) {
+            if (transactions.remove(t.getId()) != null) {
+                removeFromSender(t);
+                removed++;
+            }
+        }
+        return removed;
+    }
+    
+    
+    /**
+     * Remove from sender
+     * @param t 
+     */
+    private void removeFromSender(Transaction t) {
+        LinkedHashSet<Hash256> senderIds = bySender.get(t.getFromId());
+        if (senderIds == null) return;
+        senderIds.remove(t.getId());
+        if (senderIds.isEmpty()) bySender.remove(t.getFromId());
+    }
+    
+    
+    /**
+     * Contains
+     * @param id
+     * @return contains
+     */
+    public synchronized boolean contains(Hash256 id) {
+        return transactions.containsKey(id);
+    }
+    
+    
+    /**
+     * Get
+     * @param id
+     * @return transaction o null si no está
+     */
+    public synchronized Transaction get(Hash256 id) {
+        return transactions.get(id);
+    }
+    
+    
+    /**
+     * Get transactions
+     * @return copia de las transacciones, de mayor a menor prioridad
+     */
+    public synchronized ArrayList<Transaction> getTransactions() {
+        return new ArrayList<>(transactions.values());
+    }
+    
+    
+    /**
+     * Get transactions
+     * @param limit
+     * @return copia de las `limit` transacciones de mayor prioridad
+     */
+    public synchronized ArrayList<Transaction> getTransactions(int limit) {
+        ArrayList<Transaction> res = new ArrayList<>(Math.min(limit, transactions.size()));
+        for (Transaction t : transactions.values()) {
+            if (res.size() >= limit) break;
+            res.add(t);
+        }
+        return res;
+    }
+    
+    
+    /**
+     * Get transactions from
+     * @param senderId
+     * @return transacciones pendientes de un emisor, por orden de llegada
+     */
+    public synchronized ArrayList<Transaction> getTransactionsFrom(int senderId) {
+        ArrayList<Transaction> res = new ArrayList<>();
+        LinkedHashSet<Hash256> senderIds = bySender.get(senderId);
+        if (senderIds != null) {
+            for (Hash256 id : senderIds) res.add(transactions.get(id));
+        }
+        return res;
+    }
+    
+    
+    /**
+     * Size
+     * @return size
+     */
+    public synchronized int size() {
+        return transactions.size();
+    }
+    
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle tree
+ * 
+ * Árbol de Merkle sobre los identificadores de las transacciones de un
+ * bloque. Guarda todos los niveles para poder añadir hojas recalculando solo
+ * la rama derecha (O(log n)) y para generar pruebas de pertenencia. Si un
+ * nivel tiene un número impar de nodos, el último se empareja consigo mismo.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class MerkleTree {
+    
+    // Raíz de un árbol sin hojas
+    public static final Hash256 EMPTY_ROOT = Hash256.of(new byte[Hash256.SIZE]);
+    
+    private final ArrayList<ArrayList<Hash256>> levels = new ArrayList<>();
+    
+    
+    /**
+     * Merkle tree
+     */
+    public MerkleTree() {
+        levels.add(new ArrayList<>());
+    }
+    
+    
+    /**
+     * Merkle tree
+     * @param transactions 
+     */
+    public MerkleTree(List<Transaction> transactions) {
+        this();
+        for (Transaction t : transactions) add(t.getId());
+    }
+    
+    
+    /**
+     * Add
+     * 
+     * Añade una hoja y actualiza los nodos de la rama que la contiene.
+     * 
+     * @param leaf 
+     */
+    public void add(Hash256 leaf) {
+        levels.get(0).add(leaf);
+        int pos = levels.get(0).size() - 1;
+        for (int l=0; levels.get(l).size() > 1; l++) {
+            ArrayList<Hash256> level = levels.get(l);
+            int left = pos & ~1;
+            Hash256 right = (left + 1 < level.size()) ?
+                level.get(left + 1) : level.get(left);
+            Hash256 parent = hashPair(level.get(left), right);
+            
+            // Actualizar nodo padre
+            if (l + 1 == levels.size()) levels.add(new ArrayList<>());
+            ArrayList<Hash256> upper = levels.get(l + 1);
+            pos = left / 2;
+            if (pos < upper.size()) {
+                upper.set(pos, parent);
+            } else {
+                upper.add(parent);
+            }
+        }
+    }
+    
+    
+    /**
+     * Size
+     * @return numberOfLeaves
+     */
+    public int size() {
+        return levels.get(0).size();
+    }
+    
+    
+    /**
+     * Get root
+     * @return root
+     */
+    public Hash256 getRoot() {
+        if (size() == 0) return EMPTY_ROOT;
+        return levels.get(levels.size() - 1).get(0);
+    }
+    
+    
+    /**
+     * Get proof
+     * 
+     * Devuelve los hermanos de cada nivel, desde la hoja hasta la raíz, que
+     * permiten comprobar que la hoja pertenece al árbol.
+     * 
+     * @param index
+     * @return proof
+     */
+    public ArrayList<Hash256> getProof(int index) {
+        if ((index < 0) || (index >= size())) return null;
+        ArrayList<Hash256> proof = new ArrayList<>();
+        for (int l=0; l<levels.size()-1; l++) {
+            ArrayList<Hash256> level = levels.get(l);
+            int sibling = index ^ 1;
+            proof.add((sibling < level.size()) ? level.get(sibling) : level.get(index));
+            index >>= 1;
+        }
+        return proof;
+    }
+    
+    
+    /**
+     * Verify proof
+     * @param leaf
+     * @param index
+     * @param proof
+     * @param root
+     * @return isValid
+     */
+    public static boolean verifyProof(Hash256 leaf, int index, List<Hash256> proof,
+                                      Hash256 root) {
+        Hash256 current = leaf;
+        for (Hash256 sibling : proof) {
+            current = ((index & 1) == 0) ?
+                hashPair(current, sibling) : hashPair(sibling, current);
+            index >>= 1;
+        }
+        return current.equals(root);
+    }
+    
+    
+    /**
+     * Hash pair
+     * @param left
+     * @param right
+     * @return parent
+     */
+    private static Hash256 hashPair(Hash256 left, Hash256 right) {
+        ByteBuffer buf = ByteBuffer.allocate(Hash256.SIZE * 2);
+        left.writeTo(buf);
+        right.writeTo(buf);
+        return Hash256.of(Utils.sha256(buf.array()));
+    }
+    
+}
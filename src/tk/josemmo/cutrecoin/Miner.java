@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Miner
+ * 
+ * Motor de minado en paralelo. Reparte el espacio de nonces entre varios
+ * hilos: el hilo `i` de `n` prueba los nonces `i`, `i+n`, `i+2n`... El primer
+ * hilo que encuentra un nonce válido detiene al resto.
+ * 
+ * Los hilos salen de un pool compartido por todos los mineros, así que
+ * empezar a minar de nuevo cada vez que cambian las transacciones pendientes
+ * no crea hilos nuevos.
+ * 
+ * Puede cancelarse desde otro hilo con `cancel()`, incluso antes de empezar a
+ * minar, en cuyo caso `mine()` termina inmediatamente sin encontrar nonce.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class Miner {
+    
+    // Número de hashes tras el que cada hilo actualiza el contador global
+    private static final long REPORT_INTERVAL = 1 << 16;
+    
+    // Hilos de trabajo; los que quedan libres se reutilizan en el siguiente
+    // minado y terminan solos tras un rato sin trabajo
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "miner");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    private final int threads;
+    private final int difficulty;
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final AtomicLong winningNonce = new AtomicLong(-1);
+    private final AtomicLong hashCount = new AtomicLong(0);
+    
+    
+    /**
+     * Miner
+     * 
+     * Permite minar con una dificultad distinta a la de la cadena (en bits),
+     * útil para medir el rendimiento.
+     * 
+     * @param threads
+     * @param difficulty 
+     */
+    public Miner(int threads, int difficulty) {
+        this.threads = Math.max(1, threads);
+        this.difficulty = difficulty;
+    }
+    
+    
+    /**
+     * Miner
+     * @param threads 
+     */
+    public Miner(int threads) {
+        this(threads, Cutrecoin.DIFFICULTY);
+    }
+    
+    
+    /**
+     * Miner
+     */
+    public Miner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    
+    /**
+     * Mine
+     * 
+     * Busca un nonce válido para el bloque y, si lo encuentra, lo asigna al
+     * bloque. Bloquea hasta que se encuentra el nonce o se cancela el minado.
+     * 
+     * Si se interrumpe el hilo que llama, se cancela el minado pero se sigue
+     * esperando a que paren todos los hilos de trabajo antes de volver; la
+     * interrupción se conserva.
+     * 
+     * @param block
+     * @return found
+     */
+    public boolean mine(Block block) {
+        winningNonce.set(-1);
+        hashCount.set(0);
+        
+        // Lanzar hilos de trabajo
+        Future<?>[] workers = new Future<?>[threads];
+        for (int i=0; i<threads; i++) {
+            final long start = block.getNonce() + i;
+            workers[i] = POOL.submit(() -> work(block, start));
+        }
+        
+        // Esperar a que terminen todos
+        boolean interrupted = false;
+        for (Future<?> worker : workers) {
+            while (true) {
+                try {
+                    worker.get();
+                    break;
+                } catch (InterruptedException e) {
+                    stopped.set(true);
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    stopped.set(true);
+                    break;
+                }
+            }
+        }
+        
+        // Dejar el minero listo para reutilizarse
+        stopped.set(false);
+        if (interrupted) Thread.currentThread().interrupt();
+        
+        // Asignar nonce ganador
+        long nonce = winningNonce.get();
+        if (nonce < 0) return false;
+        block.setNonce(nonce);
+        return true;
+    }
+    
+    
+    /**
+     * Work
+     * 
+     * Bucle de un hilo de trabajo.
+     * 
+     * @param block
+     * @param start 
+     */
+    private void work(Block block, long start) {
+        Block.Hasher hasher = block.newHasher();
+        long hashes = 0;
+        for (long nonce=start; !stopped.get(); nonce+=threads) {
+            hashes++;
+            if (Hash256.hasLeadingZeroBits(hasher.hash(nonce), difficulty)) {
+                if (stopped.compareAndSet(false, true)) winningNonce.set(nonce);
+                break;
+            }
+            
+            // Publicar el progreso de vez en cuando
+            if (hashes == REPORT_INTERVAL) {
+                hashCount.addAndGet(hashes);
+                hashes = 0;
+            }
+        }
+        hashCount.addAndGet(hashes);
+    }
+    
+    
+    /**
+     * Cancel
+     * 
+     * Detiene el minado en curso sin asignar ningún nonce.
+     */
+    public void cancel() {
+        stopped.set(true);
+    }
+    
+    
+    /**
+     * Get nonce
+     * @return winningNonce
+     */
+    public long getNonce() {
+        return winningNonce.get();
+    }
+    
+    
+    /**
+     * Get hash count
+     * @return hashCount
+     */
+    public long getHashCount() {
+        return hashCount.get();
+    }
+    
+    
+    /**
+     * Get threads
+     * @return threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+    
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Orphan Pool
+ * 
+ * Bloques recibidos cuyo bloque anterior todavía no está en la cadena,
+ * indexados por el hash de ese bloque anterior. Así, al añadir un bloque se
+ * obtienen sus descendientes directamente, sin recorrer todo el conjunto.
+ * Está acotado en número de bloques y en antigüedad: se descartan primero los
+ * que llevan más tiempo esperando.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class OrphanPool {
+    
+    private final int maxSize;
+    private final long maxAge;
+    private final LinkedHashMap<Hash256, Orphan> byHash = new LinkedHashMap<>();
+    private final HashMap<Hash256, ArrayList<Block>> byParent = new HashMap<>();
+    
+    
+    /**
+     * Orphan Pool
+     * @param maxSize
+     * @param maxAge milisegundos
+     */
+    public OrphanPool(int maxSize, long maxAge) {
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+    
+    
+    /**
+     * Add
+     * @param block
+     * @return false si ya estaba
+     */
+    public synchronized boolean add(Block block) {
+        if (byHash.containsKey(block.getHash())) return false;
+        
+        // Descartar bloques caducados y, si sigue lleno, los más antiguos
+        long now = System.currentTimeMillis();
+        Iterator<Orphan> oldest = byHash.values().iterator();
+        while (oldest.hasNext()) {
+            Orphan o = oldest.next();
+            if ((byHash.size() < maxSize) && (now - o.arrival <= maxAge)) break;
+            oldest.remove();
+            removeFromParent(o.block);
+        }
+        
+        // Añadir bloque
+        byHash.put(block.getHash(), new Orphan(block, now));
+        ArrayList<Block> siblings = byParent.get(block.getPreviousHash());
+        if (siblings == null) {
+            siblings = new ArrayList<>(1);
+            byParent.put(block.getPreviousHash(), siblings);
+        }
+        siblings.add(block);
+        return true;
+    }
+    
+    
+    /**
+     * Remove children
+     * 
+     * Saca del conjunto los bloques que apuntan al hash indicado.
+     * 
+     * @param parent
+     * @return children
+     */
+    public synchronized ArrayList<Block> removeChildren(Hash256 parent) {
+        ArrayList<Block> children = byParent.remove(parent);
+        if (children == null) return new ArrayList<>();
+        for (Block b : children) byHash.remove(b.getHash());
+        return children;
+    }
+    
+    
+    /**
+     * Remove from parent
+     * @param block 
+     */
+    private void removeFromParent(Block block) {
+        ArrayList<Block> siblings = byParent.get(block.getPreviousHash());
+        if (siblings == null) return;
+        siblings.remove(block);
+        if (siblings.isEmpty()) byParent.remove(block.getPreviousHash());
+    }
+    
+    
+    /**
+     * Contains
+     * @param hash
+     * @return contains
+     */
+    public synchronized boolean contains(Hash256 hash) {
+        return byHash.containsKey(hash);
+    }
+    
+    
+    /**
+     * Size
+     * @return size
+     */
+    public synchronized int size() {
+        return byHash.size();
+    }
+    
+    
+    /**
+     * Orphan
+     */
+    private static class Orphan {
+        
+        private final Block block;
+        private final long arrival;
+        
+        
+        /**
+         * Orphan
+         * @param block
+         * @param arrival 
+         */
+        Orphan(Block block, long arrival) {
+            this.block = block;
+            this.arrival = arrival;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signature Cache
+ * 
+ * Caché acotada de transacciones cuya firma ya se ha verificado, para no
+ * repetir la verificación cuando una transacción que entró como pendiente
+ * llega después dentro de un bloque. Se guarda la firma junto al ID para que
+ * una transacción con los mismos datos pero otra firma no cuente como
+ * verificada. Cuando se llena se descartan las entradas más antiguas.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class SignatureCache {
+    
+    private final int maxSize;
+    private final ConcurrentHashMap<Hash256, byte[]> verified = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Hash256> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    
+    
+    /**
+     * Signature Cache
+     * @param maxSize 
+     */
+    public SignatureCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+    
+    
+    /**
+     * Add
+     * 
+     * Marca la firma de una transacción como verificada. Solo debe llamarse
+     * después de comprobar que `isValidSignature()` es cierto.
+     * 
+     * @param t 
+     */
+    public void add(Transaction t) {
+        Hash256 id = t.getId();
+        if (verified.put(id, t.getSignature()) != null) return;
+        insertionOrder.add(id);
+        
+        // Descartar las entradas más antiguas
+        while (verified.size() > maxSize) {
+            Hash256 eldest = insertionOrder.poll();
+            if (eldest == null) break;
+            verified.remove(eldest);
+        }
+    }
+    
+    
+    /**
+     * Contains
+     * @param t
+     * @return isVerified
+     */
+    public boolean contains(Transaction t) {
+        byte[] signature = verified.get(t.getId());
+        if ((signature != null) && Arrays.equals(signature, t.getSignature())) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+    
+    
+    /**
+     * Is valid signature
+     * 
+     * Comprueba la firma de una transacción consultando antes la caché.
+     * 
+     * @param t
+     * @return isValid
+     */
+    public boolean isValidSignature(Transaction t) {
+        return contains(t) || t.isValidSignature();
+    }
+    
+    
+    /**
+     * Size
+     * @return size
+     */
+    public int size() {
+        return verified.size();
+    }
+    
+    
+    /**
+     * Get hits
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    
+    /**
+     * Get misses
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+}
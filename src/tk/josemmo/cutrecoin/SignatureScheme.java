@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Signature Scheme
+ * 
+ * Esquemas de firma soportados por las transacciones. RSA se mantiene para
+ * las direcciones antiguas; Ed25519 genera direcciones y firmas mucho más
+ * pequeñas y se verifica más rápido. Cada esquema tiene un identificador que
+ * se guarda en la transacción, por lo que en una misma cadena pueden
+ * convivir ambos.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public enum SignatureScheme {
+    
+    RSA((byte) 1, "SHA1WithRSA", "RSA"),
+    ED25519((byte) 2, "Ed25519", "Ed25519");
+    
+    private final byte id;
+    private final String signatureAlgorithm;
+    private final String keyAlgorithm;
+    
+    
+    /**
+     * Signature Scheme
+     * @param id
+     * @param signatureAlgorithm
+     * @param keyAlgorithm 
+     */
+    SignatureScheme(byte id, String signatureAlgorithm, String keyAlgorithm) {
+        this.id = id;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+    
+    
+    /**
+     * Get ID
+     * @return id
+     */
+    public byte getId() {
+        return id;
+    }
+    
+    
+    /**
+     * Get signature algorithm
+     * @return signatureAlgorithm
+     */
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+    
+    
+    /**
+     * Get key algorithm
+     * @return keyAlgorithm
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+    
+    
+    /**
+     * Generate key pair
+     * @return keyPair o null si el JDK no soporta el esquema
+     */
+    public KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (this == RSA) kpg.initialize(1024);
+            return kpg.genKeyPair();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * From ID
+     * 
+     * Los identificadores desconocidos (incluido 0) se rechazan.
+     * 
+     * @param id
+     * @return scheme o null si no existe
+     */
+    public static SignatureScheme fromId(byte id) {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.id == id) return scheme;
+        }
+        return null;
+    }
+    
+    
+    /**
+     * From key
+     * @param key
+     * @return scheme o null si no está soportado
+     */
+    public static SignatureScheme fromKey(Key key) {
+        if (key == null) return null;
+        String algo = key.getAlgorithm();
+        if (algo.equals("RSA")) return RSA;
+        if (algo.equals("EdDSA") || algo.equals("Ed25519")) return ED25519;
+        return null;
+    }
+    
+}
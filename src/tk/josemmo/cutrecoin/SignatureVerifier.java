@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Signature Verifier
+ * 
+ * Verifica las firmas de un conjunto de transacciones repartiéndolas entre
+ * los hilos de un pool. En cuanto una firma no es válida se cancelan el resto
+ * de comprobaciones. Las transacciones que ya están en la caché de firmas
+ * verificadas no se vuelven a comprobar.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public class SignatureVerifier {
+    
+    // Por debajo de este número de transacciones no merece la pena repartir
+    private static final int MIN_PARALLEL = 16;
+    
+    private final int threads;
+    private final ExecutorService pool;
+    private final SignatureCache cache;
+    
+    
+    /**
+     * Signature Verifier
+     * @param threads
+     * @param cache 
+     */
+    public SignatureVerifier(int threads, SignatureCache cache) {
+        this.threads = Math.max(1, threads);
+        this.cache = cache;
+        this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "signature-verifier");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    
+    /**
+     * Verify all
+     * @param transactions
+     * @return allValid
+     */
+    public boolean verifyAll(List<Transaction> transactions) {
+        int size = transactions.size();
+        if ((threads == 1) || (size < MIN_PARALLEL)) {
+            for (Transaction t : transactions) {
+                if (!cache.isValidSignature(t)) return false;
+            }
+            return true;
+        }
+        
+        // Repartir en trozos contiguos, varios por hilo para equilibrar carga
+        AtomicBoolean failed = new AtomicBoolean(false);
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(pool);
+        ArrayList<Future<Boolean>> futures = new ArrayList<>();
+        int chunks = Math.min(size, threads * 4);
+        for (int i=0; i<chunks; i++) {
+            List<Transaction> chunk = transactions.subList(size * i / chunks,
+                size * (i+1) / chunks);
+            futures.add(completion.submit(() -> {
+                for (Transaction t : chunk) {
+                    if (failed.get()) return false;
+                    if (!cache.isValidSignature(t)) {
+                        failed.set(true);
+                        return false;
+                    }
+                }
+                return true;
+            }));
+        }
+        
+        // Esperar resultados y cancelar al primer fallo
+        try {
+            for (int i=0; i<chunks; i++) {
+                if (!completion.take().get()) {
+                    for (Future<Boolean> f : futures) f.cancel(true);
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            failed.set(true);
+            for (Future<Boolean> f : futures) f.cancel(true);
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    
+    /**
+     * Shutdown
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+    
+}
@@ -5,29 +5,62 @@
 
 package tk.josemmo.cutrecoin;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
-import java.util.Objects;
 
 /**
  * Transaction
  * 
  * Representa una transacción u operación monetaria.
  * 
+ * La transacción guarda el identificador del esquema de firma de la dirección
+ * de origen (ver `SignatureScheme`).
+ * 
+ * Tiene una única representación binaria canónica que se usa para firmar,
+ * calcular su ID, compararla y serializarla:
+ *   versión         1 byte
+ *   origen          esquema (1 byte) + longitud (2 bytes) + clave X.509
+ *   destino         esquema (1 byte) + longitud (2 bytes) + clave X.509
+ *   cantidad        4 bytes (float)
+ *   fecha           8 bytes (milisegundos)
+ * Para serializar se añade la firma: longitud (2 bytes) + firma. Las claves
+ * se guardan siempre como bytes, nunca como objetos serializados de Java.
+ * 
+ * Las firmas se calculan sobre esta representación, así que las transacciones
+ * firmadas por versiones anteriores (sobre el texto de la transacción) no son
+ * válidas: las cadenas antiguas no se pueden importar.
+ * 
  * @author josemmo
  * @author carlos
  */
 public class Transaction implements Serializable {
     
+    private static final long serialVersionUID = 457569042437902137L;
+    
+    // Versión del formato binario canónico
+    public static final byte FORMAT_VERSION = 1;
+    // Tamaño máximo de una clave X.509 y de una firma
+    public static final int MAX_KEY_SIZE = 2048;
+    public static final int MAX_SIGNATURE_SIZE = 2048;
+    
     private final PublicKey from;
     private final PublicKey to;
     private final float amount;
     private final Date timestamp;
+    private final byte scheme;
     private byte[] signature = null;
+    private transient byte[] canonical = null;
+    private transient Hash256 id = null;
+    private transient int fromId = AddressRegistry.NONE;
+    private transient int toId = AddressRegistry.NONE;
     
     
     /**
@@ -44,6 +77,8 @@ public class Transaction implements Serializable {
         this.to = to;
         this.amount = amount;
         this.timestamp = timestamp;
+        SignatureScheme s = SignatureScheme.fromKey(from);
+        this.scheme = (s == null) ? 0 : s.getId();
         this.signature = signature;
     }
     
@@ -62,12 +97,177 @@ public class Transaction implements Serializable {
     
     /**
      * Get data to sign
+     * 
+     * Devuelve la representación canónica de la transacción (sin la firma).
+     * Se genera la primera vez y se guarda.
+     * 
      * @return signedBytes
      */
     private byte[] getDataToSign() {
-        String data = Utils.keyToBase64(from) + Utils.keyToBase64(to) + amount +
-            ";" + timestamp.getTime();
-        return data.getBytes();
+        if (canonical == null) {
+            ByteBuffer buf = ByteBuffer.allocate(1 + keySize(from) + keySize(to) + 4 + 8);
+            buf.put(FORMAT_VERSION);
+            writeKey(buf, from);
+            writeKey(buf, to);
+            buf.putFloat(amount);
+            buf.putLong(timestamp.getTime());
+            canonical = buf.array();
+        }
+        return canonical;
+    }
+    
+    
+    /**
+     * Write key
+     * @param buf
+     * @param key 
+     */
+    static void writeKey(ByteBuffer buf, PublicKey key) {
+        SignatureScheme s = SignatureScheme.fromKey(key);
+        byte[] encoded = (key == null) ? new byte[0] : key.getEncoded();
+        if (encoded.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Clave demasiado grande");
+        }
+        buf.put((s == null) ? 0 : s.getId());
+        buf.putShort((short) encoded.length);
+        buf.put(encoded);
+    }
+    
+    
+    /**
+     * Key size
+     * @param key
+     * @return bytes que ocupa la clave codificada con `writeKey()`
+     */
+    static int keySize(PublicKey key) {
+        return 3 + ((key == null) ? 0 : key.getEncoded().length);
+    }
+    
+    
+    /**
+     * Read key
+     * @param buf
+     * @return key o null si está vacía o no es válida
+     * @throws IllegalArgumentException si supera `MAX_KEY_SIZE`
+     */
+    static PublicKey readKey(ByteBuffer buf) {
+        SignatureScheme s = SignatureScheme.fromId(buf.get());
+        int length = buf.getShort() & 0xffff;
+        if (length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Clave demasiado grande");
+        }
+        byte[] encoded = new byte[length];
+        buf.get(encoded);
+        if (s == null) return null;
+        return Utils.bytesToKey(s, encoded);
+    }
+    
+    
+    /**
+     * Encode
+     * 
+     * Representación canónica seguida de la firma.
+     * 
+     * @return bytes
+     */
+    public byte[] encode() {
+        byte[] data = getDataToSign();
+        int sigLength = (signature == null) ? 0 : signature.length;
+        ByteBuffer buf = ByteBuffer.allocate(data.length + 2 + sigLength);
+        buf.put(data);
+        buf.putShort((short) sigLength);
+        if (signature != null) buf.put(signature);
+        return buf.array();
+    }
+    
+    
+    /**
+     * Decode
+     * 
+     * Lee una transacción codificada con `encode()` a partir de la posición
+     * actual del buffer.
+     * 
+     * @param buf
+     * @return transaction o null si no es válida
+     */
+    public static Transaction decode(ByteBuffer buf) {
+        try {
+            if (buf.get() != FORMAT_VERSION) return null;
+            PublicKey from = readKey(buf);
+            PublicKey to = readKey(buf);
+            float amount = buf.getFloat();
+            Date timestamp = new Date(buf.getLong());
+            int sigLength = buf.getShort() & 0xffff;
+            if (sigLength > MAX_SIGNATURE_SIZE) return null;
+            byte[] signature = new byte[sigLength];
+            buf.get(signature);
+            if ((from == null) || (to == null)) return null;
+            return new Transaction(from, to, amount, timestamp,
+                (signature.length == 0) ? null : signature);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Encode all
+     * 
+     * Codifica una lista de transacciones: número de transacciones (4 bytes)
+     * seguido de cada una codificada con `encode()`.
+     * 
+     * @param transactions
+     * @return bytes
+     */
+    public static byte[] encodeAll(ArrayList<Transaction> transactions) {
+        ArrayList<byte[]> encoded = new ArrayList<>(transactions.size());
+        int size = 4;
+        for (Transaction t : transactions) {
+            byte[] data = t.encode();
+            encoded.add(data);
+            size += data.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(encoded.size());
+        for (byte[] data : encoded) buf.put(data);
+        return buf.array();
+    }
+    
+    
+    /**
+     * Decode all
+     * @param buf
+     * @param limit número máximo de transacciones que se aceptan
+     * @return transactions o null si alguna no es válida
+     */
+    public static ArrayList<Transaction> decodeAll(ByteBuffer buf, int limit) {
+        try {
+            int count = buf.getInt();
+            if ((count < 0) || (count > limit)) return null;
+            ArrayList<Transaction> res = new ArrayList<>(count);
+            for (int i=0; i<count; i++) {
+                Transaction t = decode(buf);
+                if (t == null) return null;
+                res.add(t);
+            }
+            return res;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Get ID
+     * 
+     * Identificador de la transacción: SHA-256 de los datos firmados. Se
+     * calcula una sola vez y sirve como clave en los índices del nodo.
+     * 
+     * @return id
+     */
+    public Hash256 getId() {
+        if (id == null) id = Hash256.of(Utils.sha256(getDataToSign()));
+        return id;
     }
     
     
@@ -80,21 +280,24 @@ public class Transaction implements Serializable {
         // Comprobar que no está firmada la transacción
         if (signature != null) return false;
         
-        // Validar que la clave privada se corresponde con esta transacción
-        String expectedPublicKey = Utils.keyToBase64(Utils.getPublicKeyFromPrivate(pk));
-        String transactionPublicKey = Utils.keyToBase64(from);
-        if (!expectedPublicKey.equals(transactionPublicKey)) return false;
-        
         // Intentar firmar la transacción
+        SignatureScheme s = getScheme();
+        if ((s == null) || (s != SignatureScheme.fromKey(pk))) return false;
         try {
-            Signature sig = Signature.getInstance(Cutrecoin.SIGNATURE_ALG);
+            Signature sig = Utils.getSignature(s.getSignatureAlgorithm());
             sig.initSign(pk);
             sig.update(getDataToSign());
             signature = sig.sign();
-            return true;
         } catch (Exception e) {
             return false;
         }
+        
+        // Validar que la clave privada se corresponde con esta transacción
+        if (!isValidSignature()) {
+            signature = null;
+            return false;
+        }
+        return true;
     }
     
     
@@ -107,8 +310,10 @@ public class Transaction implements Serializable {
      */
     public boolean isValidSignature() {
         if (signature == null) return false;
+        SignatureScheme s = getScheme();
+        if ((s == null) || (s != SignatureScheme.fromKey(from))) return false;
         try {
-            Signature sig = Signature.getInstance(Cutrecoin.SIGNATURE_ALG);
+            Signature sig = Utils.getSignature(s.getSignatureAlgorithm());
             sig.initVerify(from);
             sig.update(getDataToSign());
             return sig.verify(signature);
@@ -139,8 +344,19 @@ public class Transaction implements Serializable {
      */
     @Override
     public boolean equals(Object b) {
+        if (this == b) return true;
         if (!(b instanceof Transaction)) return false;
-        return toString().equals(b.toString());
+        return getId().equals(((Transaction) b).getId());
+    }
+    
+    
+    /**
+     * Hash code
+     * @return hashCode
+     */
+    @Override
+    public int hashCode() {
+        return getId().hashCode();
     }
     
     
@@ -162,6 +378,26 @@ public class Transaction implements Serializable {
     }
     
     
+    /**
+     * Get from ID
+     * @return identificador de la dirección de origen
+     */
+    public int getFromId() {
+        if (fromId == AddressRegistry.NONE) fromId = AddressRegistry.getId(from);
+        return fromId;
+    }
+    
+    
+    /**
+     * Get to ID
+     * @return identificador de la dirección de destino
+     */
+    public int getToId() {
+        if (toId == AddressRegistry.NONE) toId = AddressRegistry.getId(to);
+        return toId;
+    }
+    
+    
     /**
      * Get amount
      * @return amount
@@ -171,6 +407,24 @@ public class Transaction implements Serializable {
     }
     
     
+    /**
+     * Get scheme
+     * @return scheme o null si es desconocido
+     */
+    public SignatureScheme getScheme() {
+        return SignatureScheme.fromId(scheme);
+    }
+    
+    
+    /**
+     * Get signature
+     * @return signature
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+    
+    
     /**
      * Get timestamp
      * @return timestamp
@@ -179,4 +433,63 @@ public class Transaction implements Serializable {
         return timestamp;
     }
     
+    
+    /**
+     * Write replace
+     * 
+     * Las transacciones se serializan con su representación canónica.
+     * 
+     * @return serializedForm
+     */
+    private Object writeReplace() {
+        return new SerializedForm(encode());
+    }
+    
+    
+    /**
+     * Read object
+     * 
+     * Solo se aceptan transacciones serializadas con `SerializedForm`, que
+     * pasan por `decode()`. Las de versiones anteriores se rechazan.
+     * 
+     * @param in
+     * @throws InvalidObjectException 
+     */
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("Formato de transacción no compatible");
+    }
+    
+    
+    /**
+     * Serialized form
+     */
+    private static class SerializedForm implements Serializable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final byte[] data;
+        
+        
+        /**
+         * Serialized form
+         * @param data 
+         */
+        SerializedForm(byte[] data) {
+            this.data = data;
+        }
+        
+        
+        /**
+         * Read resolve
+         * @return transaction
+         * @throws InvalidObjectException 
+         */
+        private Object readResolve() throws InvalidObjectException {
+            Transaction t = decode(ByteBuffer.wrap(data));
+            if (t == null) throw new InvalidObjectException("Transacción no válida");
+            return t;
+        }
+        
+    }
+    
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 José Miguel Moreno
+ * josemiguel.moreno@alumnos.uva.es
+ */
+
+package tk.josemmo.cutrecoin;
+
+/**
+ * Transaction pointer
+ * 
+ * Posición de una transacción dentro de la cadena: altura del bloque que la
+ * contiene y posición dentro de ese bloque.
+ * 
+ * @author josemmo
+ * @author carlos
+ */
+public final class TxPointer {
+    
+    private final long blockIndex;
+    private final int position;
+    
+    
+    /**
+     * Transaction pointer
+     * @param blockIndex
+     * @param position 
+     */
+    public TxPointer(long blockIndex, int position) {
+        this.blockIndex = blockIndex;
+        this.position = position;
+    }
+    
+    
+    /**
+     * Get block index
+     * @return blockIndex
+     */
+    public long getBlockIndex() {
+        return blockIndex;
+    }
+    
+    
+    /**
+     * Get position
+     * @return position
+     */
+    public int getPosition() {
+        return position;
+    }
+    
+}
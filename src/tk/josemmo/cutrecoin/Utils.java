@@ -5,27 +5,128 @@
 
 package tk.josemmo.cutrecoin;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
 import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Utils
  * 
  * Clase con métodos estáticos para ser reutilizados.
  * 
+ * Las instancias de `MessageDigest`, `Signature` y `KeyFactory` se reutilizan
+ * por hilo en lugar de buscarlas en los proveedores en cada uso, y las
+ * conversiones entre claves públicas y Base64 se guardan en una caché LRU.
+ * 
  * @author josemmo
  * @author carlos
  */
 public class Utils {
+    
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+    
+    // Número máximo de claves públicas en cada caché
+    private static final int KEY_CACHE_SIZE = 4096;
+    
+    private static final ThreadLocal<HashMap<String, MessageDigest>> digests =
+        ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<HashMap<String, Signature>> signatures =
+        ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<HashMap<String, KeyFactory>> keyFactories =
+        ThreadLocal.withInitial(HashMap::new);
+    private static final Map<ByteBuffer, PublicKey> decodedKeys = lruCache();
+    private static final Map<PublicKey, String> encodedKeys = lruCache();
+    
+    
+    /**
+     * LRU cache
+     * @return cache sincronizada de tamaño `KEY_CACHE_SIZE`
+     */
+    private static <K, V> Map<K, V> lruCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > KEY_CACHE_SIZE;
+            }
+        });
+    }
+    
+    
+    /**
+     * Get digest
+     * 
+     * Devuelve la instancia de este hilo para el algoritmo dado. No debe
+     * compartirse con otros hilos.
+     * 
+     * @param algo
+     * @return digest
+     * @throws NoSuchAlgorithmException 
+     */
+    public static MessageDigest getDigest(String algo) throws NoSuchAlgorithmException {
+        HashMap<String, MessageDigest> pool = digests.get();
+        MessageDigest md = pool.get(algo);
+        if (md == null) {
+            md = MessageDigest.getInstance(algo);
+            pool.put(algo, md);
+        }
+        md.reset();
+        return md;
+    }
+    
+    
+    /**
+     * Get signature
+     * 
+     * Devuelve la instancia de este hilo para el algoritmo dado. Hay que
+     * inicializarla con `initSign` o `initVerify` antes de cada uso.
+     * 
+     * @param algo
+     * @return signature
+     * @throws NoSuchAlgorithmException 
+     */
+    public static Signature getSignature(String algo) throws NoSuchAlgorithmException {
+        HashMap<String, Signature> pool = signatures.get();
+        Signature sig = pool.get(algo);
+        if (sig == null) {
+            sig = Signature.getInstance(algo);
+            pool.put(algo, sig);
+        }
+        return sig;
+    }
+    
+    
+    /**
+     * Get key factory
+     * @param algo
+     * @return keyFactory
+     * @throws NoSuchAlgorithmException 
+     */
+    public static KeyFactory getKeyFactory(String algo) throws NoSuchAlgorithmException {
+        HashMap<String, KeyFactory> pool = keyFactories.get();
+        KeyFactory kf = pool.get(algo);
+        if (kf == null) {
+            kf = KeyFactory.getInstance(algo);
+            pool.put(algo, kf);
+        }
+        return kf;
+    }
+    
 
     /**
      * Digest
@@ -35,14 +136,7 @@ public class Utils {
      */
     public static String digest(String algo, String input) {
         try {
-            MessageDigest sha256 = MessageDigest.getInstance(algo);
-            sha256.update(input.getBytes("UTF-8"));
-            byte[] digest = sha256.digest();
-            StringBuffer sb = new StringBuffer();
-            for (int i=0;i<digest.length; i++) {
-                sb.append(String.format("%02x", digest[i]));
-            }
-            return sb.toString();
+            return toHex(getDigest(algo).digest(input.getBytes(StandardCharsets.UTF_8)));
         } catch (Exception e) {
             return null;
         }
@@ -59,6 +153,54 @@ public class Utils {
     }
     
     
+    /**
+     * SHA-256
+     * 
+     * Calcula el hash de un array de bytes sin pasar por String.
+     * 
+     * @param input
+     * @return hash
+     */
+    public static byte[] sha256(byte[] input) {
+        try {
+            return getDigest("SHA-256").digest(input);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    
+    /**
+     * To hex
+     * @param bytes
+     * @return hex
+     */
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i=0; i<bytes.length; i++) {
+            out[i*2] = HEX_CHARS[(bytes[i] >> 4) & 0x0f];
+            out[i*2 + 1] = HEX_CHARS[bytes[i] & 0x0f];
+        }
+        return new String(out);
+    }
+    
+    
+    /**
+     * Hex to bytes
+     * @param hex
+     * @return bytes
+     */
+    public static byte[] hexToBytes(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i=0; i<out.length; i++) {
+            int hi = Character.digit(hex.charAt(i*2), 16);
+            int lo = Character.digit(hex.charAt(i*2 + 1), 16);
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+    
+    
     /**
      * Generate key pair
      * 
@@ -68,13 +210,19 @@ public class Utils {
      * @return keyPair
      */
     public static KeyPair generateKeyPair() {
-        try {
-            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-            kpg.initialize(1024);
-            return kpg.genKeyPair();
-        } catch (Exception e) {
-            return null;
-        }
+        KeyPair keyPair = generateKeyPair(Cutrecoin.DEFAULT_SCHEME);
+        if (keyPair == null) keyPair = generateKeyPair(SignatureScheme.RSA);
+        return keyPair;
+    }
+    
+    
+    /**
+     * Generate key pair
+     * @param scheme
+     * @return keyPair
+     */
+    public static KeyPair generateKeyPair(SignatureScheme scheme) {
+        return scheme.generateKeyPair();
     }
     
     
@@ -87,7 +235,15 @@ public class Utils {
      * @return base64
      */
     public static String keyToBase64(Key key) {
-        return Base64.getEncoder().encodeToString(key.getEncoded());
+        if (!(key instanceof PublicKey)) {
+            return Base64.getEncoder().encodeToString(key.getEncoded());
+        }
+        String b64 = encodedKeys.get((PublicKey) key);
+        if (b64 == null) {
+            b64 = Base64.getEncoder().encodeToString(key.getEncoded());
+            encodedKeys.put((PublicKey) key, b64);
+        }
+        return b64;
     }
     
     
@@ -98,20 +254,65 @@ public class Utils {
      */
     public static PublicKey base64ToKey(String b64) {
         try {
-            byte[] publicBytes = Base64.getDecoder().decode(b64);
-            X509EncodedKeySpec keySpec = new X509EncodedKeySpec(publicBytes);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            return keyFactory.generatePublic(keySpec);
+            return bytesToKey(Base64.getDecoder().decode(b64));
         } catch (Exception e) {
             return null;
         }
     }
     
     
+    /**
+     * Bytes to key
+     * 
+     * Decodifica una clave pública X.509 probando cada esquema de firma.
+     * 
+     * @param encoded
+     * @return key o null si no es válida
+     */
+    public static PublicKey bytesToKey(byte[] encoded) {
+        return bytesToKey(null, encoded);
+    }
+    
+    
+    /**
+     * Bytes to key
+     * 
+     * Decodifica una clave pública X.509 del esquema indicado (o probando
+     * todos si es null). Las claves ya decodificadas salen de la caché, pero
+     * igualmente se rechazan si no son del esquema indicado, para que el
+     * resultado no dependa de lo que haya en la caché.
+     * 
+     * @param scheme
+     * @param encoded
+     * @return key o null si no es válida
+     */
+    public static PublicKey bytesToKey(SignatureScheme scheme, byte[] encoded) {
+        ByteBuffer cacheKey = ByteBuffer.wrap(encoded);
+        PublicKey key = decodedKeys.get(cacheKey);
+        if (key != null) {
+            if ((scheme != null) && (SignatureScheme.fromKey(key) != scheme)) return null;
+            return key;
+        }
+        
+        // Decodificar clave
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encoded);
+        SignatureScheme[] schemes = (scheme == null) ?
+            SignatureScheme.values() : new SignatureScheme[] {scheme};
+        for (SignatureScheme s : schemes) {
+            try {
+                key = getKeyFactory(s.getKeyAlgorithm()).generatePublic(keySpec);
+                decodedKeys.put(cacheKey, key);
+                return key;
+            } catch (Exception e) {}
+        }
+        return null;
+    }
+    
+    
     /**
      * Get public key from private key
      * 
-     * Dada una clave privada, obtiene su clave pública
+     * Dada una clave privada RSA, obtiene su clave pública
      * @param pk
      * @return publicKey
      */
@@ -120,8 +321,7 @@ public class Utils {
         RSAPublicKeySpec publicKeySpec = new RSAPublicKeySpec(pvt.getModulus(),
             pvt.getPublicExponent());
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PublicKey publicKey = keyFactory.generatePublic(publicKeySpec);
+            PublicKey publicKey = getKeyFactory("RSA").generatePublic(publicKeySpec);
             return publicKey;
         } catch (Exception e) {
             return null;
@@ -129,6 +329,55 @@ public class Utils {
     }
     
     
+    /**
+     * Encode key pair
+     * 
+     * Codifica un par de claves: esquema (1 byte), clave privada PKCS#8 y
+     * clave pública X.509, cada una precedida de su longitud (2 bytes).
+     * 
+     * @param pair
+     * @return bytes
+     */
+    public static byte[] encodeKeyPair(KeyPair pair) {
+        SignatureScheme s = SignatureScheme.fromKey(pair.getPublic());
+        byte[] privateBytes = pair.getPrivate().getEncoded();
+        byte[] publicBytes = pair.getPublic().getEncoded();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 2 + privateBytes.length + 2 +
+            publicBytes.length);
+        buf.put((s == null) ? 0 : s.getId());
+        buf.putShort((short) privateBytes.length);
+        buf.put(privateBytes);
+        buf.putShort((short) publicBytes.length);
+        buf.put(publicBytes);
+        return buf.array();
+    }
+    
+    
+    /**
+     * Decode key pair
+     * @param data
+     * @return pair o null si no es válido
+     */
+    public static KeyPair decodeKeyPair(byte[] data) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            SignatureScheme s = SignatureScheme.fromId(buf.get());
+            byte[] privateBytes = new byte[buf.getShort() & 0xffff];
+            buf.get(privateBytes);
+            byte[] publicBytes = new byte[buf.getShort() & 0xffff];
+            buf.get(publicBytes);
+            if ((s == null) || buf.hasRemaining()) return null;
+            PrivateKey privateKey = getKeyFactory(s.getKeyAlgorithm())
+                .generatePrivate(new PKCS8EncodedKeySpec(privateBytes));
+            PublicKey publicKey = bytesToKey(s, publicBytes);
+            if (publicKey == null) return null;
+            return new KeyPair(publicKey, privateKey);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    
     /**
      * Add line breaks
      * @param input
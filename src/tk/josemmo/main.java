@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import tk.josemmo.cutrecoin.Block;
 import tk.josemmo.cutrecoin.Cutrecoin;
+import tk.josemmo.cutrecoin.SignatureCache;
 import tk.josemmo.cutrecoin.Transaction;
 import tk.josemmo.cutrecoin.Utils;
 
@@ -21,9 +22,13 @@ import tk.josemmo.cutrecoin.Utils;
  */
 public class main {
     
+    // Número de transacciones por página en "Mis transacciones"
+    private static final int PAGE_SIZE = 10;
+    
     private static KeyPair userCredentials;
     private static Cutrecoin cutrecoin;
     private static ConnectionManager cm;
+    private static MiningService miningService;
     
     /**
      * Pause
@@ -69,32 +74,26 @@ public class main {
     public static void menuNuevaTransaccion() {
         // Obtener datos del usuario
         float balance = cutrecoin.getBalance(userCredentials.getPublic());
-        int addrLength = Utils.keyToBase64(userCredentials.getPublic()).length();
         if (balance <= 0) {
             System.out.println("[!] No tienes dinero suficiente");
             pause();
             return;
         }
         
-        // Pedir dirección del destinatario
+        // Pedir dirección del destinatario (puede ocupar varias líneas)
         String toAddr = "";
+        PublicKey toKey = null;
         System.out.println("========= DIRECCIÓN DEL DESTINATARIO =========");
-        while (toAddr.length() < addrLength) {
+        while (toKey == null) {
             String buff = MyInput.readString();
-            toAddr += buff;
-            System.out.println(toAddr);
+            if ((buff == null) || buff.trim().isEmpty()) break;
+            toAddr += buff.trim();
+            toKey = Utils.base64ToKey(toAddr);
         }
-        toAddr = toAddr.trim();
         System.out.println("==============================================");
         
         // Validar dirección
-        if (toAddr.length() != addrLength) {
-            System.out.println("[!] Dirección no válida. Envío abortado.");
-            pause();
-            return;
-        }
-        PublicKey toKey = Utils.base64ToKey(toAddr);
-        if (toKey != null) {
+        if (toKey == null) {
             System.out.println("[!] Dirección no válida. Envío abortado.");
             pause();
             return;
@@ -140,9 +139,18 @@ public class main {
             "==============================================\n" +
             "TU SALDO: " + balance + " CC\n");
         
-        // Mostrar listado de últimas transacciones
-        for (Transaction t : cutrecoin.getCustomTransactions(key)) {
-            System.out.println(t.getTimestamp() + " - " + t.getAmount() + " CC");
+        // Mostrar listado de últimas transacciones, por páginas
+        int cursor = cutrecoin.getCustomTransactionCount(key);
+        while (cursor > 0) {
+            ArrayList<Transaction> page = cutrecoin.getCustomTransactions(key,
+                cursor, PAGE_SIZE);
+            for (Transaction t : page) {
+                System.out.println(t.getTimestamp() + " - " + t.getAmount() + " CC");
+            }
+            cursor -= page.size();
+            if (cursor <= 0) break;
+            System.out.print("¿Ver más? [s/N]: ");
+            if (!MyInput.readString().trim().equalsIgnoreCase("s")) break;
         }
         
         // Pausar
@@ -156,22 +164,23 @@ public class main {
     public static void menuMinarBloques() {
         System.out.println("==== MINAR BLOQUES ====");
         
-        // Crear bloque potencial
-        Block lastBlock = cutrecoin.getLastBlock();
-        long blockIndex = (lastBlock == null) ? 0 : lastBlock.getIndex() + 1;
-        String prevHash = (lastBlock == null) ? null : lastBlock.getHash();
-        ArrayList<Transaction> transactions = cutrecoin.getPendingTransactions();
-        Block block = new Block(blockIndex, transactions, prevHash,
-            userCredentials.getPublic(), Cutrecoin.MAX_FEE);
-        
-        // Minar bloque
-        System.out.println("Minando bloque #" + blockIndex + " . . .");
-        block.mine();
+        // Iniciar minado en segundo plano
+        if (!miningService.isRunning()) {
+            miningService.start();
+            System.out.println("[i] Minado iniciado en segundo plano");
+            pause();
+            return;
+        }
         
-        // Guardar y propagar bloque
-        cutrecoin.addBlock(block);
-        cm.propagate(block);
-        System.out.println("¡Bloque minado! Nonce: " + block.getNonce());
+        // Mostrar estado del minado
+        System.out.println("Minando bloque #" + miningService.getCurrentIndex() + "\n" +
+            "Bloques minados: " + miningService.getBlocksMined() + "\n" +
+            "Velocidad: " + Math.round(miningService.getHashRate()) + " H/s");
+        System.out.print("¿Detener el minado? [s/N]: ");
+        if (MyInput.readString().trim().equalsIgnoreCase("s")) {
+            miningService.stop();
+            System.out.println("[i] Minado detenido");
+        }
         pause();
     }
     
@@ -182,13 +191,16 @@ public class main {
     public static void menuVerEstado() {
         Block lastBlock = cutrecoin.getLastBlock();
         long blockNum = (lastBlock == null) ? 0 : lastBlock.getIndex() + 1;
-        int pendingNum = cutrecoin.getPendingTransactions().size();
+        int pendingNum = cutrecoin.getPendingTransactionCount();
+        SignatureCache cache = cutrecoin.getSignatureCache();
         System.out.println("=== ESTADO DE LA RED ===\n" +
             "Nodos conectados: " + cm.getNodeCount() + "\n" +
             "Sincronizado con la red: " + (cm.isSynced() ? "Sí" : "No") + "\n" +
             "Número de bloques: " + blockNum + "\n" +
             "Número de transacciones pendientes: " + pendingNum + "\n" +
-            "Tapa de mercado: " + cutrecoin.getMarketCap() + " CC");
+            "Tapa de mercado: " + cutrecoin.getMarketCap() + " CC\n" +
+            "Firmas reutilizadas: " + cache.getHits() + " (verificadas: " +
+                cache.getMisses() + ")");
         pause();
     }
     
@@ -198,12 +210,15 @@ public class main {
      */
     public static void main(String[] args) {
         // Obtener o crear credenciales del usuario
-        Object creds = DataManager.readSerialized(DataManager.CREDENTIALS_PATH);
-        if (creds == null) {
-            userCredentials = Utils.generateKeyPair();
-            DataManager.saveSerialized(DataManager.CREDENTIALS_PATH, userCredentials);
-        } else {
-            userCredentials = (KeyPair) creds;
+        // (las guardadas con versiones anteriores se convierten al nuevo formato)
+        byte[] creds = DataManager.readBytes(DataManager.CREDENTIALS_PATH);
+        userCredentials = (creds == null) ? null : Utils.decodeKeyPair(creds);
+        if (userCredentials == null) {
+            Object oldCreds = DataManager.readSerialized(DataManager.CREDENTIALS_PATH);
+            userCredentials = (oldCreds instanceof KeyPair) ?
+                (KeyPair) oldCreds : Utils.generateKeyPair();
+            DataManager.saveBytes(DataManager.CREDENTIALS_PATH,
+                Utils.encodeKeyPair(userCredentials));
         }
         
         // Instanciar Cutrecoin
@@ -212,6 +227,7 @@ public class main {
         // Instanciar ConnectionManager
         System.out.println("Conectándose a la red de Cutrecoin . . .");
         cm = new ConnectionManager(cutrecoin);
+        miningService = new MiningService(cutrecoin, cm, userCredentials.getPublic());
         
         // Mostrar menú por pantalla
         clear();
@@ -241,6 +257,7 @@ public class main {
         
         // Salir del programa
         System.out.println("[i] Cerrando conexiones activas...");
+        miningService.stop();
         cm.kill();
         System.out.println("[i] Cutrecoin se ha cerrado. ¡Hasta luego!");
     }